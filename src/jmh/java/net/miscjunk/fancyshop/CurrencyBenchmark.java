@@ -0,0 +1,134 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Currency checks and price names with 5 and 500 custom currencies, named notes and tokens sharing two materials.
+// The lookups mix custom currencies, plain items, blacklisted items and unnamed items of a currency's material. The
+// scan variants are how CurrencyManager looked currencies up before the index.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CurrencyBenchmark {
+    private static final int LOOKUPS = 64;
+    private static final List<String> BLACKLIST = Arrays.asList("COBBLESTONE", "GLASS", "STICK");
+
+    @Param({"5", "500"})
+    public int currencies;
+
+    private CurrencyManager manager;
+    private final ItemStack[] items = new ItemStack[LOOKUPS];
+
+    @Setup
+    public void setUp() {
+        TestServer.start();
+        Plugin plugin = TestServer.plugin(new File("."));
+        plugin.getConfig().createSection("currencies");
+        plugin.getConfig().set("currency-blacklist", BLACKLIST);
+        CurrencyManager.init(plugin);
+        manager = CurrencyManager.getInstance();
+        ItemStack[] custom = new ItemStack[currencies];
+        for (int i = 0; i < currencies; i++) {
+            custom[i] = named(i % 2 == 0 ? Material.PAPER : Material.GOLD_INGOT, "Note " + i);
+            manager.addCustomCurrency("Note" + i, custom[i]);
+        }
+        ItemStack[] others = {new ItemStack(Material.DIAMOND), new ItemStack(Material.EMERALD),
+                new ItemStack(Material.COBBLESTONE), new ItemStack(Material.PAPER), new ItemStack(Material.GOLD_INGOT),
+                named(Material.PAPER, "Forged Note")};
+        for (int i = 0; i < LOOKUPS; i++) {
+            ItemStack item = i % 2 == 0 ? custom[(i * 7919) % currencies] : others[i / 2 % others.length];
+            items[i] = item.clone();
+            items[i].setAmount(1 + i % 16);
+        }
+    }
+
+    private static ItemStack named(Material type, String name) {
+        ItemStack item = new ItemStack(type, 1);
+        ItemMeta meta = item.getItemMeta();
+        meta.setDisplayName(name);
+        item.setItemMeta(meta);
+        return item;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void isCurrency(Blackhole bh) {
+        for (ItemStack item : items) {
+            bh.consume(manager.isCurrency(item));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void isCurrencyScan(Blackhole bh) {
+        for (ItemStack item : items) {
+            bh.consume(isCurrencyScan(item));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void itemToPrice(Blackhole bh) {
+        for (ItemStack item : items) {
+            bh.consume(manager.itemToPrice(item));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void itemToPriceScan(Blackhole bh) {
+        for (ItemStack item : items) {
+            bh.consume(itemToPriceScan(item));
+        }
+    }
+
+    private boolean isCurrencyScan(ItemStack item) {
+        if (item == null) return false;
+        if (BLACKLIST.contains(item.getType().name())) return false;
+        for (ItemStack i : manager.currencies.values()) {
+            if (i.isSimilar(item)) return true;
+        }
+        if (manager.whitelist) return false;
+        if (item.hasItemMeta()) return false;
+        return item.getData().getData() == 0;
+    }
+
+    private String itemToPriceScan(ItemStack item) {
+        for (Map.Entry<String, ItemStack> e : manager.currencies.entrySet()) {
+            if (e.getValue().isSimilar(item)) {
+                return item.getAmount() + " " + e.getKey();
+            }
+        }
+        String[] words = item.getType().toString().split("_");
+        StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            sb.append(word.charAt(0)).append(word.substring(1).toLowerCase()).append(' ');
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        return item.getAmount() + " " + sb;
+    }
+}
@@ -0,0 +1,130 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A 500-block explosion in the middle of a mall: two floors of double chest shops, one every other block along x and
+// every third block along z. Finding the blocks near shops with one index query is compared with a lookup per block,
+// and filtering the protected blocks out with removeIf with removing them one at a time. The blocks are proxies, so
+// each getX, getY and getZ costs a reflective call in every variant.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExplosionBenchmark {
+    private static final String WORLD = "world";
+    private static final int BLOCKS = 500;
+
+    private ShopIndex index;
+    private List<Block> blocks;
+    private Map<Block, Object> shops;
+
+    @Setup
+    public void setUp() {
+        List<ShopLocation> locations = new ArrayList<>();
+        for (int y = 64; y <= 68; y += 4) {
+            for (int x = 0; x < 40; x += 2) {
+                for (int z = 0; z < 40; z += 3) {
+                    locations.add(new ShopLocation(WORLD, x, y, z));
+                }
+            }
+        }
+        index = new ShopIndex(locations);
+
+        final World world = TestServer.proxy(World.class, (method, args) ->
+                method.getName().equals("getName") ? WORLD : TestServer.none(method));
+        List<int[]> sphere = new ArrayList<>();
+        for (int x = -6; x <= 6; x++) {
+            for (int y = -6; y <= 6; y++) {
+                for (int z = -6; z <= 6; z++) {
+                    sphere.add(new int[] {x, y, z});
+                }
+            }
+        }
+        sphere.sort((a, b) -> Integer.compare(a[0] * a[0] + a[1] * a[1] + a[2] * a[2],
+                b[0] * b[0] + b[1] * b[1] + b[2] * b[2]));
+        blocks = new ArrayList<>();
+        for (int[] p : sphere.subList(0, BLOCKS)) {
+            blocks.add(block(world, 20 + p[0], 66 + p[1], 20 + p[2]));
+        }
+        // the explosion order isn't sorted by distance
+        Collections.shuffle(blocks, new Random(17));
+
+        shops = new IdentityHashMap<>();
+        for (Block b : FancyShop.nearShops(index, blocks)) {
+            shops.put(b, b);
+        }
+    }
+
+    private static Block block(final World world, final int x, final int y, final int z) {
+        return TestServer.proxy(Block.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getWorld":
+                    return world;
+                case "getX":
+                    return x;
+                case "getY":
+                    return y;
+                case "getZ":
+                    return z;
+                default:
+                    return TestServer.none(method);
+            }
+        });
+    }
+
+    @Benchmark
+    public List<Block> indexQuery() {
+        return FancyShop.nearShops(index, blocks);
+    }
+
+    @Benchmark
+    public List<Block> perBlockLookup() {
+        List<Block> near = new ArrayList<>();
+        for (Block b : blocks) {
+            String world = b.getWorld().getName();
+            int x = b.getX(), y = b.getY(), z = b.getZ();
+            if (index.contains(world, x, y, z) || index.contains(world, x - 1, y, z)
+                    || index.contains(world, x, y, z - 1)) {
+                near.add(b);
+            }
+        }
+        return near;
+    }
+
+    @Benchmark
+    public List<Block> filterRemoveIf() {
+        List<Block> list = new ArrayList<>(blocks);
+        list.removeIf(shops::containsKey);
+        return list;
+    }
+
+    @Benchmark
+    public List<Block> filterRemoveAt() {
+        List<Block> list = new ArrayList<>(blocks);
+        for (int i = 0; i < list.size(); i++) {
+            if (shops.containsKey(list.get(i))) list.remove(i--);
+        }
+        return list;
+    }
+}
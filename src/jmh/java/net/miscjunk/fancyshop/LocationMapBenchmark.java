@@ -0,0 +1,122 @@
+package net.miscjunk.fancyshop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Looking up shops by block position, as the event handlers do for every block they check: the HashMap keyed by
+// ShopLocation with the string hash shops used before, the same map with the packed hash, and the per-world BlockMap.
+// Every benchmark makes the same lookups, half of them for shops and half for the blocks next to them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LocationMapBenchmark {
+    private static final int LOOKUPS = 1024;
+    private static final String WORLD = "world";
+
+    @Param({"1000", "100000"})
+    public int shops;
+
+    private final Map<StringKey, Object> stringKeys = new HashMap<>();
+    private final Map<ShopLocation, Object> locations = new HashMap<>();
+    private final BlockMap<Object> blockMap = new BlockMap<>();
+    private final int[] x = new int[LOOKUPS];
+    private final int[] y = new int[LOOKUPS];
+    private final int[] z = new int[LOOKUPS];
+
+    // ShopLocation's equals and hashCode before positions were packed
+    private static class StringKey {
+        final String world;
+        final int x;
+        final int y;
+        final int z;
+
+        StringKey(String world, int x, int y, int z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StringKey)) return false;
+            StringKey other = (StringKey) o;
+            return other.world.equals(world) && other.x == x && other.y == y && other.z == z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (world + "x" + x + "y" + y + "z" + z).hashCode();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(14);
+        int world = WorldIds.id(WORLD);
+        ShopLocation[] placed = new ShopLocation[shops];
+        for (int i = 0; i < shops; i++) {
+            ShopLocation l = new ShopLocation(WORLD, random.nextInt(20000) - 10000, 40 + random.nextInt(40),
+                    random.nextInt(20000) - 10000);
+            placed[i] = l;
+            Object shop = new Object();
+            stringKeys.put(new StringKey(WORLD, l.getX(), l.getY(), l.getZ()), shop);
+            locations.put(l, shop);
+            blockMap.put(world, l.pack(), shop);
+        }
+        for (int i = 0; i < LOOKUPS; i++) {
+            ShopLocation l = placed[random.nextInt(shops)];
+            x[i] = l.getX() + (i % 2 == 0 ? 0 : 1);
+            y[i] = l.getY();
+            z[i] = l.getZ();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int stringHashMap() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (stringKeys.get(new StringKey(WORLD, x[i], y[i], z[i])) != null) found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int packedHashMap() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (locations.get(new ShopLocation(WORLD, x[i], y[i], z[i])) != null) found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int blockMap() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (blockMap.get(WorldIds.id(WORLD), ShopLocation.pack(x[i], y[i], z[i])) != null) found++;
+        }
+        return found;
+    }
+}
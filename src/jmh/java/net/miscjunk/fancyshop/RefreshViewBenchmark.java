@@ -0,0 +1,94 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Shop.refreshView on a full page of 27 deals that someone is looking at, as when the owner closes the chest. With
+// the lore cached and nothing changed, with the cache dropped first so every deal renders its lore again as it did
+// before lore was cached, and with a stack in the chest changed so some stock lines change.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RefreshViewBenchmark {
+    private static final Material[] ITEMS = {Material.COBBLESTONE, Material.GOLD_INGOT, Material.IRON_INGOT,
+            Material.ENDER_PEARL, Material.PAPER, Material.ARROW, Material.GLASS, Material.STICK, Material.CHEST};
+
+    private Shop shop;
+    private Inventory chest;
+    private int changed;
+
+    @Setup
+    public void setUp() {
+        TestServer.start();
+        Plugin plugin = TestServer.plugin(new File("."));
+        plugin.getConfig().createSection("currencies");
+        CurrencyManager.init(plugin);
+        ItemStack note = new ItemStack(Material.PAPER, 1);
+        ItemMeta meta = note.getItemMeta();
+        meta.setDisplayName("Bank Note");
+        note.setItemMeta(meta);
+        CurrencyManager.getInstance().addCustomCurrency("Note", note);
+
+        chest = FakeInventory.chest(54);
+        ItemStack[] slots = FakeInventory.of(chest).slots;
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ItemStack(i % 6 == 5 ? Material.DIAMOND : ITEMS[i % ITEMS.length], 1 + i % 64);
+        }
+        shop = new Shop(new ShopLocation("world", 0, 64, 0), chest, new UUID(0, 1), "Mall", false);
+        ItemStack[] prices = {new ItemStack(Material.DIAMOND, 2), new ItemStack(Material.EMERALD, 5), note};
+        for (int i = 0; i < Shop.PAGE_SIZE; i++) {
+            ItemStack price = prices[i % prices.length].clone();
+            price.setAmount(1 + i % 4);
+            Deal deal = new Deal(new ItemStack(ITEMS[i % ITEMS.length], 1 + i / ITEMS.length), price,
+                    i % 2 == 0 ? new ItemStack(Material.DIAMOND, 1) : null);
+            deal.setShop(shop);
+            shop.deals.add(deal);
+        }
+        Player player = TestServer.proxy(Player.class, (method, args) -> TestServer.none(method));
+        FakeInventory.of(shop.getInventory()).viewers.add(player);
+        shop.refreshView();
+    }
+
+    @Benchmark
+    public Shop cached() {
+        shop.refreshView();
+        return shop;
+    }
+
+    @Benchmark
+    public Shop uncached() {
+        Deal.invalidateLore();
+        shop.refreshView();
+        return shop;
+    }
+
+    @Benchmark
+    public Shop stockChanged() {
+        // moves a stack between two amounts, so the deals for that item show a different stock every time
+        ItemStack stack = FakeInventory.of(chest).slots[0];
+        stack.setAmount(++changed % 2 == 0 ? 10 : 20);
+        shop.refreshView();
+        return shop;
+    }
+}
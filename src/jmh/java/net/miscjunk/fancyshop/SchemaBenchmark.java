@@ -0,0 +1,219 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Loading and removing one shop in SQLite with hundreds of thousands of deals stored, under schema v4 (integer shop
+// ids, indexed coordinates and deals.shop_id) and under v3, where shops were keyed by their location string and finding
+// a shop's deals scanned the whole deals table. v3 is rebuilt here with its old tables and queries.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchemaBenchmark {
+    private static final String WORLD = "world";
+    private static final int DEALS_PER_SHOP = 3;
+    private static final int BATCH = 500;
+    private static final Material[] ITEMS = {Material.DIAMOND, Material.COBBLESTONE, Material.ENDER_PEARL};
+
+    @Param({"v4", "v3"})
+    public String schema;
+
+    @Param({"100000", "300000"})
+    public int deals;
+
+    private File dir;
+    private SqliteShopStore store;
+    private Connection v3;
+    private ShopSnapshot[] stored;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestServer.start();
+        dir = Files.createTempDirectory("fancyshop-schema").toFile();
+        Plugin plugin = TestServer.plugin(dir);
+        // loaded deals have their prices checked against the currencies
+        plugin.getConfig().createSection("currencies");
+        CurrencyManager.init(plugin);
+        stored = new ShopSnapshot[deals / DEALS_PER_SHOP];
+        long dealId = 0;
+        for (int i = 0; i < stored.length; i++) {
+            ShopLocation l = new ShopLocation(WORLD, i % 500 * 2, 64, i / 500 * 2);
+            List<Deal> list = new ArrayList<>();
+            for (int d = 0; d < DEALS_PER_SHOP; d++) {
+                Deal deal = new Deal(new ItemStack(ITEMS[d], 1 + i % 16), new ItemStack(Material.EMERALD, 1 + d),
+                        d == 0 ? null : new ItemStack(Material.EMERALD, 1));
+                deal.setId(++dealId);
+                list.add(deal);
+            }
+            stored[i] = new ShopSnapshot(l, new UUID(0, i % 500), "Shop " + i, false, list);
+            stored[i].full = true;
+        }
+        if (schema.equals("v4")) {
+            store = new SqliteShopStore(plugin);
+            store.open();
+            List<ShopWriter.Write> batch = new ArrayList<>();
+            for (ShopSnapshot shop : stored) {
+                batch.add(ShopWriter.Write.store(shop));
+                if (batch.size() == BATCH) {
+                    store.write(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) store.write(batch);
+        } else {
+            Class.forName("org.sqlite.JDBC");
+            v3 = DriverManager.getConnection("jdbc:sqlite:" + new File(dir, "shops-v3.db").getAbsolutePath());
+            try (Statement stmt = v3.createStatement()) {
+                stmt.execute("CREATE TABLE shops (location TEXT NOT NULL, owner TEXT NOT NULL, " +
+                        "is_admin INT NOT NULL DEFAULT 0, name TEXT, PRIMARY KEY (location))");
+                stmt.execute("CREATE TABLE deals (id INTEGER PRIMARY KEY AUTOINCREMENT, shop_id INT NOT NULL, " +
+                        "item TEXT NOT NULL, buy_price TEXT, sell_price TEXT, " +
+                        "FOREIGN KEY (shop_id) REFERENCES shops(location))");
+            }
+            v3.setAutoCommit(false);
+            for (int i = 0; i < stored.length; i += BATCH) {
+                for (ShopSnapshot shop : Arrays.asList(stored).subList(i, Math.min(i + BATCH, stored.length))) {
+                    storeV3(shop);
+                }
+                v3.commit();
+            }
+        }
+        Collections.shuffle(Arrays.asList(stored), new Random(3));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (store != null) store.close();
+        if (v3 != null) v3.close();
+        delete(dir);
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private ShopSnapshot nextShop() {
+        ShopSnapshot shop = stored[next];
+        next = (next + 1) % stored.length;
+        return shop;
+    }
+
+    @Benchmark
+    public ShopSnapshot load() throws Exception {
+        ShopLocation location = nextShop().getLocation();
+        return store != null ? store.load(location) : loadV3(location);
+    }
+
+    // removing a shop and its deals, then storing it again so the tables keep their size; both halves are timed
+    @Benchmark
+    public void removeAndStore() throws Exception {
+        ShopSnapshot shop = nextShop();
+        if (store != null) {
+            store.write(Collections.singletonList(ShopWriter.Write.remove(shop.getLocation())));
+            store.write(Collections.singletonList(ShopWriter.Write.store(shop)));
+        } else {
+            removeV3(shop.getLocation());
+            v3.commit();
+            storeV3(shop);
+            v3.commit();
+        }
+    }
+
+    // the v3 tables were written and read by ShopRepository with these queries
+
+    private ShopSnapshot loadV3(ShopLocation location) throws SQLException {
+        ShopSnapshot shop;
+        try (PreparedStatement stmt = v3.prepareStatement("SELECT * FROM shops WHERE location=?")) {
+            stmt.setString(1, location.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return null;
+                shop = new ShopSnapshot(location, UUID.fromString(rs.getString("owner")), rs.getString("name"),
+                        rs.getBoolean("is_admin"), new ArrayList<Deal>());
+            }
+        }
+        try (PreparedStatement stmt = v3.prepareStatement("SELECT * FROM deals WHERE shop_id=?")) {
+            stmt.setString(1, location.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Deal d = new Deal(CurrencyManager.stringToItem(rs.getString("item")),
+                            CurrencyManager.stringToItem(rs.getString("buy_price")),
+                            CurrencyManager.stringToItem(rs.getString("sell_price")));
+                    d.setId(rs.getLong("id"));
+                    shop.deals.add(d);
+                }
+            }
+        }
+        return shop;
+    }
+
+    private void removeV3(ShopLocation location) throws SQLException {
+        try (PreparedStatement deleteDeals = v3.prepareStatement("DELETE FROM deals WHERE shop_id=?");
+             PreparedStatement deleteShop = v3.prepareStatement("DELETE FROM shops WHERE location=?")) {
+            deleteDeals.setString(1, location.toString());
+            deleteDeals.execute();
+            deleteShop.setString(1, location.toString());
+            deleteShop.execute();
+        }
+    }
+
+    private void storeV3(ShopSnapshot shop) throws SQLException {
+        String location = shop.getLocation().toString();
+        try (PreparedStatement storeShop = v3.prepareStatement("INSERT OR REPLACE INTO shops VALUES (?, ?, ?, ?)");
+             PreparedStatement storeDeal = v3.prepareStatement("INSERT INTO deals (shop_id, item, buy_price, " +
+                     "sell_price) VALUES (?, ?, ?, ?)")) {
+            storeShop.setString(1, location);
+            storeShop.setString(2, shop.getOwner().toString());
+            storeShop.setBoolean(3, shop.isAdmin());
+            storeShop.setString(4, shop.getName());
+            storeShop.execute();
+            for (Deal d : shop.getDeals()) {
+                storeDeal.setString(1, location);
+                storeDeal.setString(2, CurrencyManager.itemToString(d.getItem()));
+                storeDeal.setString(3, CurrencyManager.itemToString(d.getBuyPrice()));
+                storeDeal.setString(4, CurrencyManager.itemToString(d.getSellPrice()));
+                storeDeal.addBatch();
+            }
+            storeDeal.executeBatch();
+        }
+    }
+}
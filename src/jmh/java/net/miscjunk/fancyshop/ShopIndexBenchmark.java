@@ -0,0 +1,111 @@
+package net.miscjunk.fancyshop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Area queries against the index with shops spread over a 20000 block square: /fs near's 50 block radius, a 256 block
+// region, and the mayContain checks the event handlers make for every block, next to a scan of every location for the
+// same radius.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShopIndexBenchmark {
+    private static final int QUERIES = 256;
+    private static final String WORLD = "world";
+    private static final int RADIUS = 50;
+    private static final int REGION = 256;
+
+    @Param({"5000", "50000"})
+    public int shops;
+
+    private final List<ShopLocation> locations = new ArrayList<>();
+    private ShopIndex index;
+    private final int[] x = new int[QUERIES];
+    private final int[] y = new int[QUERIES];
+    private final int[] z = new int[QUERIES];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(15);
+        for (int i = 0; i < shops; i++) {
+            locations.add(new ShopLocation(WORLD, random.nextInt(20000) - 10000, 40 + random.nextInt(40),
+                    random.nextInt(20000) - 10000));
+        }
+        index = new ShopIndex(locations);
+        // half of the queries next to a shop, half anywhere
+        for (int i = 0; i < QUERIES; i++) {
+            if (i % 2 == 0) {
+                ShopLocation l = locations.get(random.nextInt(shops));
+                x[i] = l.getX() + 1;
+                y[i] = l.getY();
+                z[i] = l.getZ();
+            } else {
+                x[i] = random.nextInt(20000) - 10000;
+                y[i] = 40 + random.nextInt(40);
+                z[i] = random.nextInt(20000) - 10000;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int near() {
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            found += index.near(WORLD, x[i], y[i], z[i], RADIUS).size();
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int within() {
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            found += index.within(WORLD, x[i], 0, z[i], x[i] + REGION - 1, 255, z[i] + REGION - 1).size();
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int mayContain() {
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (index.mayContain(WORLD, x[i], y[i], z[i])) found++;
+        }
+        return found;
+    }
+
+    // what answering /fs near without the index costs, before any database access
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int scan() {
+        long r2 = (long) RADIUS * RADIUS;
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            for (ShopLocation l : locations) {
+                if (ShopIndex.distanceSquared(l, x[i], y[i], z[i]) <= r2) found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,148 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// What each storage backend costs with 20k shops of three deals: a main thread load, a chunk load, saving one changed
+// deal the way the writer does, and reading everything like the preload.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StoreBenchmark {
+    private static final String WORLD = "world";
+    private static final int BATCH = 500;
+    private static final Material[] ITEMS = {Material.DIAMOND, Material.COBBLESTONE, Material.ENDER_PEARL};
+
+    @Param({"sqlite", "h2", "log"})
+    public String store;
+
+    @Param({"20000"})
+    public int shops;
+
+    private File dir;
+    private ShopStore backend;
+    private ShopSnapshot[] stored;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestServer.start();
+        dir = Files.createTempDirectory("fancyshop-store").toFile();
+        Plugin plugin = TestServer.plugin(dir);
+        // loaded deals have their prices checked against the currencies
+        plugin.getConfig().createSection("currencies");
+        CurrencyManager.init(plugin);
+        backend = create(store, plugin);
+        backend.open();
+        stored = new ShopSnapshot[shops];
+        long dealId = 0;
+        List<ShopWriter.Write> batch = new ArrayList<>();
+        for (int i = 0; i < shops; i++) {
+            // about 25 shops to a chunk
+            ShopLocation l = new ShopLocation(WORLD, i % 200 * 3, 64, i / 200 * 3);
+            List<Deal> deals = new ArrayList<>();
+            for (int d = 0; d < 3; d++) {
+                Deal deal = new Deal(new ItemStack(ITEMS[d], 1 + i % 16), new ItemStack(Material.EMERALD, 1 + d),
+                        d == 0 ? null : new ItemStack(Material.EMERALD, 1));
+                deal.setId(++dealId);
+                deals.add(deal);
+            }
+            stored[i] = new ShopSnapshot(l, new UUID(0, i % 500), "Shop " + i, false, deals);
+            batch.add(ShopWriter.Write.store(stored[i]));
+            if (batch.size() == BATCH) {
+                backend.write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) backend.write(batch);
+        Collections.shuffle(Arrays.asList(stored), new Random(6));
+    }
+
+    private static ShopStore create(String type, Plugin plugin) {
+        switch (type) {
+            case "sqlite":
+                return new SqliteShopStore(plugin);
+            case "h2":
+                return new H2ShopStore(plugin);
+            default:
+                return new LogShopStore(plugin);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        backend.close();
+        delete(dir);
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private ShopSnapshot nextShop() {
+        ShopSnapshot shop = stored[next];
+        next = (next + 1) % stored.length;
+        return shop;
+    }
+
+    @Benchmark
+    public ShopSnapshot load() throws StoreException {
+        return backend.load(nextShop().getLocation());
+    }
+
+    @Benchmark
+    public Map<ShopLocation, ShopSnapshot> loadChunk() throws StoreException {
+        return backend.loadChunk(ChunkKey.of(nextShop().getLocation()));
+    }
+
+    @Benchmark
+    public void saveDeal() throws StoreException {
+        ShopSnapshot shop = nextShop();
+        Deal deal = shop.getDeals().get(1);
+        deal.setAmount(deal.getAmount() % 16 + 1);
+        ShopSnapshot changed = new ShopSnapshot(shop.getLocation(), shop.getOwner(), shop.getName(), false,
+                shop.getDeals());
+        changed.changedDeals.add(deal.getId());
+        backend.write(Collections.singletonList(ShopWriter.Write.store(changed)));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<ShopLocation, ShopSnapshot> loadAll() throws StoreException {
+        return backend.loadAll(null);
+    }
+}
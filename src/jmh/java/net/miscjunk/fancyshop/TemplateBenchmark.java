@@ -0,0 +1,113 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Loading the deals of 10k shops, each deal with its own deserialized stacks as loading gives them, kept as they are
+// (what deals did before) or through the shared templates. Besides the load time, JMH reports the heap retained per
+// deal and the number of templates as the bytesPerDeal and templates counters; run with -prof gc for what loading
+// allocates.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateBenchmark {
+    private static final int SHOPS = 10000;
+    private static final int DEALS_PER_SHOP = 3;
+    private static final Material[] ITEMS = {Material.COBBLESTONE, Material.GOLD_INGOT, Material.IRON_INGOT,
+            Material.ENDER_PEARL, Material.PAPER, Material.ARROW, Material.GLASS, Material.STICK};
+    private static final Material[] CURRENCIES = {Material.DIAMOND, Material.EMERALD, Material.LAPIS_LAZULI};
+
+    @Param({"false", "true"})
+    public boolean shared;
+
+    private ItemStack[] items;
+    private ItemStack[] prices;
+
+    // a deal before templates: the stacks it was loaded with
+    private static class UnsharedDeal {
+        final ItemStack item;
+        final ItemStack buyPrice;
+        final ItemStack sellPrice;
+        int available;
+        int buying;
+
+        UnsharedDeal(ItemStack item, ItemStack buyPrice, ItemStack sellPrice) {
+            this.item = item;
+            this.buyPrice = buyPrice;
+            this.sellPrice = sellPrice;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        TestServer.start();
+        items = new ItemStack[ITEMS.length * 16];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new ItemStack(ITEMS[i % ITEMS.length], 1 + i / ITEMS.length);
+        }
+        prices = new ItemStack[CURRENCIES.length * 8];
+        for (int i = 0; i < prices.length; i++) {
+            prices[i] = new ItemStack(CURRENCIES[i % CURRENCIES.length], 1 + i / CURRENCIES.length);
+        }
+    }
+
+    // measured once per iteration, outside the timed load, and left alone by the benchmark
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long bytesPerDeal;
+        public long templates;
+
+        @Setup(Level.Iteration)
+        public void measure(TemplateBenchmark benchmark) {
+            long before = usedHeap();
+            Object[] deals = benchmark.loadDeals();
+            bytesPerDeal = (usedHeap() - before) / deals.length;
+            templates = ItemTemplates.size();
+        }
+    }
+
+    // takes the counters only so JMH reports them with this benchmark
+    @Benchmark
+    public Object[] load(Footprint footprint) {
+        return loadDeals();
+    }
+
+    private Object[] loadDeals() {
+        Object[] deals = new Object[SHOPS * DEALS_PER_SHOP];
+        for (int i = 0; i < deals.length; i++) {
+            // loading decodes every value into a new stack
+            ItemStack item = items[i % items.length].clone();
+            ItemStack buyPrice = prices[i % prices.length].clone();
+            ItemStack sellPrice = prices[(i + 1) % prices.length].clone();
+            deals[i] = shared ? new Deal(item, buyPrice, sellPrice) : new UnsharedDeal(item, buyPrice, sellPrice);
+        }
+        return deals;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
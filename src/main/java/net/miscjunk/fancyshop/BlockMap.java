@@ -0,0 +1,142 @@
+package net.miscjunk.fancyshop;
+
+import java.util.Arrays;
+
+// Maps a world id and a packed position (ShopLocation.pack, ChunkKey.pack) to a value. Each world has its own open
+// addressing table of primitive keys, so lookups don't allocate. No null values, not thread-safe.
+class BlockMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private static class Table {
+        long[] keys;
+        Object[] values; // null marks a free slot
+        int size;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private Table[] tables = new Table[4];
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    V get(int world, long key) {
+        if (world >= tables.length || tables[world] == null) return null;
+        Table t = tables[world];
+        int mask = t.keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            Object v = t.values[i];
+            if (v == null) return null;
+            if (t.keys[i] == key) return (V) v;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int world, long key, V value) {
+        if (value == null) throw new NullPointerException("value");
+        Table t = table(world);
+        if ((t.size + 1) * 2 > t.keys.length) resize(t, t.keys.length * 2);
+        int mask = t.keys.length - 1;
+        int i = slot(key, mask);
+        while (t.values[i] != null) {
+            if (t.keys[i] == key) {
+                Object old = t.values[i];
+                t.values[i] = value;
+                return (V) old;
+            }
+            i = (i + 1) & mask;
+        }
+        t.keys[i] = key;
+        t.values[i] = value;
+        t.size++;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int world, long key) {
+        if (world >= tables.length || tables[world] == null) return null;
+        Table t = tables[world];
+        int mask = t.keys.length - 1;
+        int i = slot(key, mask);
+        while (true) {
+            if (t.values[i] == null) return null;
+            if (t.keys[i] == key) break;
+            i = (i + 1) & mask;
+        }
+        Object old = t.values[i];
+        // shift later entries of the probe sequence back, so lookups never stop at the hole
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (t.values[j] == null) break;
+            int home = slot(t.keys[j], mask);
+            boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (!stays) {
+                t.keys[i] = t.keys[j];
+                t.values[i] = t.values[j];
+                i = j;
+            }
+        }
+        t.values[i] = null;
+        t.size--;
+        size--;
+        return (V) old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int size(int world) {
+        return world < tables.length && tables[world] != null ? tables[world].size : 0;
+    }
+
+    // the map must not be changed meanwhile
+    @SuppressWarnings("unchecked")
+    void forEach(int world, Visitor<V> visitor) {
+        if (world >= tables.length || tables[world] == null) return;
+        Table t = tables[world];
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.values[i] != null) visitor.visit(t.keys[i], (V) t.values[i]);
+        }
+    }
+
+    void clear() {
+        Arrays.fill(tables, null);
+        size = 0;
+    }
+
+    private Table table(int world) {
+        if (world >= tables.length) tables = Arrays.copyOf(tables, Math.max(world + 1, tables.length * 2));
+        Table t = tables[world];
+        if (t == null) tables[world] = t = new Table(MIN_CAPACITY);
+        return t;
+    }
+
+    private static void resize(Table t, int capacity) {
+        long[] keys = t.keys;
+        Object[] values = t.values;
+        t.keys = new long[capacity];
+        t.values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int k = 0; k < keys.length; k++) {
+            if (values[k] == null) continue;
+            int i = slot(keys[k], mask);
+            while (t.values[i] != null) i = (i + 1) & mask;
+            t.keys[i] = keys[k];
+            t.values[i] = values[k];
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,64 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Chunk;
+
+public class ChunkKey {
+    final String world;
+    final int x;
+    final int z;
+
+    public ChunkKey(String world, int x, int z) {
+        this.world = world;
+        this.x = x;
+        this.z = z;
+    }
+
+    public static ChunkKey of(ShopLocation location) {
+        return new ChunkKey(location.getWorld(), location.getX() >> 4, location.getZ() >> 4);
+    }
+
+    public static ChunkKey of(Chunk chunk) {
+        return new ChunkKey(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    public boolean contains(ShopLocation location) {
+        return location.getX() >> 4 == x && location.getZ() >> 4 == z && location.getWorld().equals(world);
+    }
+
+    public long pack() {
+        return pack(x, z);
+    }
+
+    public static long pack(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkKey)) return false;
+        ChunkKey other = (ChunkKey) o;
+        return other.x == x && other.z == z && other.world.equals(world);
+    }
+
+    @Override
+    public int hashCode() {
+        return (world.hashCode() * 31 + x) * 31 + z;
+    }
+
+    @Override
+    public String toString() {
+        return "chunk:" + world + "x" + x + "z" + z;
+    }
+}
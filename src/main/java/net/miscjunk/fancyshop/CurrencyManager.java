@@ -3,6 +3,7 @@ package net.miscjunk.fancyshop;
 import com.comphenix.protocol.utility.MinecraftReflection;
 import com.comphenix.protocol.wrappers.nbt.NbtCompound;
 import com.comphenix.protocol.wrappers.nbt.NbtFactory;
+import com.comphenix.protocol.wrappers.nbt.io.NbtBinarySerializer;
 import com.comphenix.protocol.wrappers.nbt.io.NbtTextSerializer;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
@@ -12,23 +13,46 @@ import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.Damageable;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class CurrencyManager {
     private static CurrencyManager instance;
-    FancyShop plugin;
+    // display names of materials, filled in as they are first shown
+    private static final String[] itemNames = new String[Material.values().length];
+    Plugin plugin;
     boolean whitelist;
     Map<String, ItemStack> currencies;
-    List<String> blacklist;
+    Set<Material> blacklist;
+    // custom currencies by material, replaced as a whole when one is added so loader threads can read it
+    private volatile Map<Material, Currency[]> index;
     static boolean protocolInstall = false;
 
-    public static void init(FancyShop plugin) {
+    private static class Currency {
+        final String name;
+        final ItemStack item;
+        final int fingerprint;
+
+        Currency(String name, ItemStack item) {
+            this.name = name;
+            this.item = item;
+            this.fingerprint = fingerprint(item);
+        }
+    }
+
+    public static void init(Plugin plugin) {
         if (instance != null) throw new RuntimeException("CurrencyManager is already initialized");
         instance = new CurrencyManager(plugin);
         protocolInstall = Bukkit.getServer().getPluginManager().isPluginEnabled("ProtocolLib");
@@ -43,10 +67,18 @@ public class CurrencyManager {
         return instance;
     }
 
-    private CurrencyManager(FancyShop plugin) {
+    private CurrencyManager(Plugin plugin) {
         this.plugin = plugin;
         whitelist = plugin.getConfig().getBoolean("currency-whitelist");
-        blacklist = plugin.getConfig().getStringList("currency-blacklist");
+        blacklist = EnumSet.noneOf(Material.class);
+        for (String name : plugin.getConfig().getStringList("currency-blacklist")) {
+            Material material = Material.matchMaterial(name);
+            if (material == null) {
+                Bukkit.getLogger().warning("[FancyShop] Unknown material in currency-blacklist: " + name);
+            } else {
+                blacklist.add(material);
+            }
+        }
         currencies = new HashMap<>();
         ConfigurationSection section = plugin.getConfig().getConfigurationSection("currencies");
         for (String name : section.getKeys(false)) {
@@ -71,33 +103,67 @@ public class CurrencyManager {
                 }
             }
         }
+        index = buildIndex(currencies);
     }
 
-    public String itemToPrice(ItemStack item) {
+    private static Map<Material, Currency[]> buildIndex(Map<String, ItemStack> currencies) {
+        Map<Material, List<Currency>> byType = new EnumMap<>(Material.class);
         for (Map.Entry<String, ItemStack> e : currencies.entrySet()) {
-            if (e.getValue().isSimilar(item)) {
-                return item.getAmount() + " " + e.getKey();
-            }
+            if (e.getValue() == null) continue; // couldn't be read from the config
+            List<Currency> list = byType.get(e.getValue().getType());
+            if (list == null) byType.put(e.getValue().getType(), list = new ArrayList<>());
+            list.add(new Currency(e.getKey(), e.getValue()));
         }
-        return item.getAmount() + " " + itemName(item);
+        Map<Material, Currency[]> index = new EnumMap<>(Material.class);
+        for (Map.Entry<Material, List<Currency>> e : byType.entrySet()) {
+            index.put(e.getKey(), e.getValue().toArray(new Currency[0]));
+        }
+        return index;
+    }
+
+    // ignores the amount, similar items hash the same
+    private static int fingerprint(ItemStack item) {
+        if (item.getAmount() == 1) return item.hashCode();
+        ItemStack one = item.clone();
+        one.setAmount(1);
+        return one.hashCode();
+    }
+
+    private Currency find(ItemStack item) {
+        Currency[] candidates = index.get(item.getType());
+        if (candidates == null) return null;
+        if (candidates.length == 1) return candidates[0].item.isSimilar(item) ? candidates[0] : null;
+        int fingerprint = fingerprint(item);
+        for (Currency c : candidates) {
+            if (c.fingerprint == fingerprint && c.item.isSimilar(item)) return c;
+        }
+        return null;
+    }
+
+    public String itemToPrice(ItemStack item) {
+        Currency c = find(item);
+        return item.getAmount() + " " + (c == null ? itemName(item) : c.name);
     }
 
     public static String itemName(ItemStack item) {
-        String[] words = item.getType().toString().split("_");
+        Material type = item.getType();
+        String name = itemNames[type.ordinal()];
+        if (name != null) return name;
+        String[] words = type.toString().split("_");
         StringBuilder sb = new StringBuilder();
         for (String word : words) {
             sb.append(word.charAt(0)).append(word.substring(1).toLowerCase()).append(' ');
         }
         sb.deleteCharAt(sb.length() - 1);
-        return sb.toString();
+        name = sb.toString();
+        itemNames[type.ordinal()] = name;
+        return name;
     }
 
     public boolean isCurrency(ItemStack item) {
         if (item == null) return false;
-        if (blacklist.contains(item.getType().name())) return false;
-        for (ItemStack i : currencies.values()) {
-            if (i.isSimilar(item)) return true;
-        }
+        if (blacklist.contains(item.getType())) return false;
+        if (find(item) != null) return true;
         if (whitelist) return false;
         if (item.hasItemMeta()) return false;
         return item.getData().getData() == 0;
@@ -110,10 +176,12 @@ public class CurrencyManager {
     public void addCustomCurrency(String name, ItemStack item) {
         ItemStack it = item.clone();
         it.setAmount(1);
-        currencies.put(name, item);
+        currencies.put(name, it);
+        index = buildIndex(currencies);
         ConfigurationSection section = plugin.getConfig().getConfigurationSection("currencies");
         section.set(name, itemToString(it));
         plugin.saveConfig();
+        Deal.invalidateLore(); // prices in this currency are shown by its name now
     }
 
     public static String itemToString(ItemStack item) {
@@ -159,6 +227,20 @@ class ProtocolLibHook {
         return new NbtTextSerializer().serialize(tag);
     }
 
+    public static void writeNbt(ItemStack item, DataOutput out) {
+        item = ProtocolLibHook.getCraftItemStack(item);
+        NbtCompound tag = NbtFactory.asCompound(NbtFactory.fromItemTag(item));
+        NbtBinarySerializer.DEFAULT.serialize(tag, out);
+    }
+
+    public static ItemStack readNbt(ItemStack item, DataInput in) {
+        NbtCompound tag = NbtBinarySerializer.DEFAULT.deserializeCompound(in);
+        item = ProtocolLibHook.getCraftItemStack(item);
+        if (tag != null && !tag.getKeys().isEmpty())
+            NbtFactory.setItemTag(item, tag);
+        return item;
+    }
+
     public static ItemStack setTagFromText(ItemStack item, String NBTTag) {
         if (NBTTag.isEmpty())
             return item;
@@ -4,73 +4,201 @@ import org.bukkit.ChatColor;
 import org.bukkit.inventory.ItemStack;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+// An item offered by a shop. The item and prices are shared ItemTemplates plus an amount, so their getters return new
+// stacks; code that only compares items should use the template getters.
 public class Deal {
+    // bumped when currency names or strings change, so every deal renders its price lines again
+    private static int loreVersion;
+
+    private long id; // 0 until the deal has been saved
+    private boolean dirty;
+    private Shop shop; // the shop whose deal list this is in, told about changes
     private ItemStack item;
+    private int amount;
     private int available;
     private int buying;
-    private ItemStack buyPrice;
-    private ItemStack sellPrice;
+    private ItemStack buyPrice; // null if the shop doesn't sell the item
+    private int buyAmount;
+    private ItemStack sellPrice; // null if the shop doesn't buy the item
+    private int sellAmount;
+    // lore lines, each kept until its inputs change
+    private int linesVersion = -1;
+    private String buyLine;
+    private String sellLine;
+    private String stockLine;
+    private int stockLineFor = -1;
+    private String buyingLine;
+    private int buyingLineFor = -1;
+    private List<String> lore;
+    private boolean loreAdmin;
 
     public Deal(ItemStack item) {
         this(item, null, null);
     }
 
     public Deal(ItemStack item, ItemStack buyPrice, ItemStack sellPrice) {
-        this.item = item;
+        this.item = ItemTemplates.intern(item);
+        this.amount = item == null ? 0 : item.getAmount();
         this.available = 0;
         this.buying = 0;
-        this.buyPrice = buyPrice;
-        this.sellPrice = sellPrice;
+        this.buyPrice = ItemTemplates.intern(buyPrice);
+        this.buyAmount = buyPrice == null ? 0 : buyPrice.getAmount();
+        this.sellPrice = ItemTemplates.intern(sellPrice);
+        this.sellAmount = sellPrice == null ? 0 : sellPrice.getAmount();
+    }
+
+    // keeps the database id
+    public Deal copy() {
+        Deal d = duplicate();
+        d.id = id;
+        return d;
+    }
+
+    // a new deal that hasn't been saved yet
+    public Deal duplicate() {
+        Deal d = new Deal(item, null, null);
+        d.amount = amount;
+        d.buyPrice = buyPrice;
+        d.buyAmount = buyAmount;
+        d.sellPrice = sellPrice;
+        d.sellAmount = sellAmount;
+        return d;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    void setShop(Shop shop) {
+        this.shop = shop;
+    }
+
+    private void changed() {
+        dirty = true;
+        if (shop != null) shop.markChanged();
     }
 
     public void setBuyPrice(ItemStack buyPrice) {
-        this.buyPrice = buyPrice;
+        this.buyPrice = ItemTemplates.intern(buyPrice);
+        this.buyAmount = buyPrice == null ? 0 : buyPrice.getAmount();
+        linesVersion = -1;
+        changed();
     }
 
     public void setSellPrice(ItemStack sellPrice) {
-        this.sellPrice = sellPrice;
+        this.sellPrice = ItemTemplates.intern(sellPrice);
+        this.sellAmount = sellPrice == null ? 0 : sellPrice.getAmount();
+        linesVersion = -1;
+        changed();
+    }
+
+    public void setAmount(int amount) {
+        this.amount = amount;
+        changed();
+    }
+
+    // after currency names or strings changed
+    static void invalidateLore() {
+        loreVersion++;
     }
 
+    // lines are only rendered again when their inputs changed, and the same unmodifiable list is returned until then;
+    // main thread only
     public List<String> toLore(boolean admin) {
-        List<String> lore = new ArrayList<String>();
-        if (buyPrice != null)
-            lore.add("" + ChatColor.RESET + ChatColor.GREEN + I18n.s("deal.buy", CurrencyManager.getInstance().itemToPrice(buyPrice)));
-        if (sellPrice != null)
-            lore.add("" + ChatColor.RESET + ChatColor.BLUE + I18n.s("deal.sell", CurrencyManager.getInstance().itemToPrice(sellPrice)));
-        if (buyPrice != null && !admin) {
-            if (available > 0) {
-                lore.add(I18n.s("deal.stock", available));
-            } else {
-                lore.add(ChatColor.RED + I18n.s("deal.no-stock"));
-            }
+        if (linesVersion != loreVersion) {
+            linesVersion = loreVersion;
+            buyLine = buyPrice == null ? null : "" + ChatColor.RESET + ChatColor.GREEN
+                    + I18n.s("deal.buy", CurrencyManager.getInstance().itemToPrice(getBuyPrice()));
+            sellLine = sellPrice == null ? null : "" + ChatColor.RESET + ChatColor.BLUE
+                    + I18n.s("deal.sell", CurrencyManager.getInstance().itemToPrice(getSellPrice()));
+            stockLineFor = -1;
+            buyingLineFor = -1;
+            lore = null;
         }
-        if (sellPrice != null && !admin) {
-            if (buying > 0) {
-                lore.add(I18n.s("deal.buying", buying));
-            } else {
-                lore.add(I18n.s("deal.not-buying"));
-            }
+        if (buyPrice != null && !admin && stockLineFor != available) {
+            stockLine = available > 0 ? I18n.s("deal.stock", available) : ChatColor.RED + I18n.s("deal.no-stock");
+            stockLineFor = available;
+            lore = null;
         }
+        if (sellPrice != null && !admin && buyingLineFor != buying) {
+            buyingLine = buying > 0 ? I18n.s("deal.buying", buying) : I18n.s("deal.not-buying");
+            buyingLineFor = buying;
+            lore = null;
+        }
+        if (lore != null && loreAdmin == admin) return lore;
+        List<String> lines = new ArrayList<String>();
+        if (buyPrice != null) lines.add(buyLine);
+        if (sellPrice != null) lines.add(sellLine);
+        if (buyPrice != null && !admin) lines.add(stockLine);
+        if (sellPrice != null && !admin) lines.add(buyingLine);
         if (buyPrice == null && sellPrice == null) {
-            lore.add("" + ChatColor.RESET + ChatColor.RED + I18n.s("deal.no-price"));
+            lines.add("" + ChatColor.RESET + ChatColor.RED + I18n.s("deal.no-price"));
         }
+        lore = Collections.unmodifiableList(lines);
+        loreAdmin = admin;
         return lore;
     }
 
     public ItemStack getItem() {
-        return item;
+        return ItemTemplates.stack(item, amount);
     }
 
     public ItemStack getBuyPrice() {
-        return buyPrice;
+        return ItemTemplates.stack(buyPrice, buyAmount);
     }
 
     public ItemStack getSellPrice() {
+        return ItemTemplates.stack(sellPrice, sellAmount);
+    }
+
+    // the shared templates, must not be modified
+    public ItemStack getItemTemplate() {
+        return item;
+    }
+
+    public ItemStack getBuyTemplate() {
+        return buyPrice;
+    }
+
+    public ItemStack getSellTemplate() {
         return sellPrice;
     }
 
+    public int getAmount() {
+        return amount;
+    }
+
+    public int getBuyAmount() {
+        return buyAmount;
+    }
+
+    public int getSellAmount() {
+        return sellAmount;
+    }
+
+    public boolean hasBuyPrice() {
+        return buyPrice != null;
+    }
+
+    public boolean hasSellPrice() {
+        return sellPrice != null;
+    }
+
     public int getAvailable() {
         return available;
     }
@@ -1,9 +1,12 @@
 package net.miscjunk.fancyshop;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.DoubleChest;
 import org.bukkit.block.Hopper;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -18,13 +21,29 @@ import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.inventory.DoubleChestInventory;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class FancyShop extends JavaPlugin implements Listener {
+    // inventories that never belong to a container block
+    private static final Set<InventoryType> NOT_CONTAINERS = EnumSet.of(InventoryType.PLAYER, InventoryType.CRAFTING,
+            InventoryType.CREATIVE, InventoryType.WORKBENCH, InventoryType.ENCHANTING, InventoryType.ANVIL,
+            InventoryType.MERCHANT, InventoryType.ENDER_CHEST, InventoryType.BEACON);
+
     FancyShopCommandExecutor cmdExecutor;
     boolean allowExplosion;
     boolean allowBreak;
@@ -32,7 +51,13 @@ public class FancyShop extends JavaPlugin implements Listener {
     boolean allowHoppersIn;
 
     public void onDisable() {
+        ShopChunkLoader.stop();
+        Shop.stopCache();
+        if (!ShopRepository.flush(getConfig().getLong("shutdown-timeout", 30) * 1000)) {
+            getLogger().warning("Timed out waiting for shop saves to finish");
+        }
         ShopRepository.cleanup();
+        TradeLedger.cleanup();
     }
 
     public void onEnable() {
@@ -47,13 +72,17 @@ public class FancyShop extends JavaPlugin implements Listener {
         CurrencyManager.init(this);
         getCommand("fancyshop").setExecutor(cmdExecutor);
         ShopRepository.init(this);
+        Shop.startCache(this);
+        ShopPreloader.start(this);
+        TradeLedger.init(this);
+        ShopChunkLoader.start(this);
         Bukkit.getLogger().info("Locale: " + I18n.getLocale());
         Bukkit.getLogger().info("Translator: " + I18n.s("translator"));
     }
 
     @EventHandler(priority = EventPriority.LOW)
     public void onPlayerInteract(PlayerInteractEvent event) {
-        if (!canBeShop(event.getClickedBlock()) || event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
+        if (!mayBeShop(event.getClickedBlock()) || event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
         Inventory inv = ((InventoryHolder) event.getClickedBlock().getState()).getInventory();
         if (event.getPlayer().isSneaking()) {
             if (Shop.isShop(inv)) {
@@ -75,9 +104,9 @@ public class FancyShop extends JavaPlugin implements Listener {
                         Shop shop = Shop.fromInventory(inv);
                         if (shop == null) return;
                         if (p.getUniqueId().equals(shop.getOwner()) && event.getMaterial() != Material.STICK) {
-                            shop.edit(p);
+                            shop.edit(p, this);
                         } else {
-                            shop.open(p);
+                            shop.open(p, this);
                         }
                     } else {
                         Chat.e(p, I18n.s("use.permission"));
@@ -99,19 +128,26 @@ public class FancyShop extends JavaPlugin implements Listener {
 
     @EventHandler
     public void onInventoryClick(InventoryClickEvent event) {
-        if (event.getInventory().getHolder() instanceof Shop) {
-            ((Shop) event.getInventory().getHolder()).onInventoryClick(event);
-        } else if (event.getInventory().getHolder() instanceof ShopEditor) {
-            ((ShopEditor) event.getInventory().getHolder()).onInventoryClick(event);
+        InventoryHolder holder = event.getInventory().getHolder();
+        if (holder instanceof Shop) {
+            ((Shop) holder).onInventoryClick(event);
+        } else if (holder instanceof ShopEditor) {
+            ((ShopEditor) holder).onInventoryClick(event);
+        } else if (isContainer(holder)) {
+            // the owner may be restocking the chest while others trade
+            stockChanged(event.getInventory());
         }
     }
 
     @EventHandler
     public void onInventoryDrag(InventoryDragEvent event) {
-        if (event.getInventory().getHolder() instanceof Shop) {
-            ((Shop) event.getInventory().getHolder()).onInventoryDrag(event);
-        } else if (event.getInventory().getHolder() instanceof ShopEditor) {
-            ((ShopEditor) event.getInventory().getHolder()).onInventoryDrag(event);
+        InventoryHolder holder = event.getInventory().getHolder();
+        if (holder instanceof Shop) {
+            ((Shop) holder).onInventoryDrag(event);
+        } else if (holder instanceof ShopEditor) {
+            ((ShopEditor) holder).onInventoryDrag(event);
+        } else if (isContainer(holder)) {
+            stockChanged(event.getInventory());
         }
     }
 
@@ -132,7 +168,7 @@ public class FancyShop extends JavaPlugin implements Listener {
 
     @EventHandler
     public void onBlockBreak(BlockBreakEvent event) {
-        if (!canBeShop(event.getBlock())) return;
+        if (!mayBeShop(event.getBlock())) return;
         Inventory inv = ((InventoryHolder) event.getBlock().getState()).getInventory();
         if (Shop.isShop(inv)) {
             Player player = event.getPlayer();
@@ -151,28 +187,68 @@ public class FancyShop extends JavaPlugin implements Listener {
 
     @EventHandler
     public void onEntityExplode(EntityExplodeEvent event) {
-        if (event.isCancelled()) return;
-        for (int i = 0; i < event.blockList().size(); i++) {
-            Block b = event.blockList().get(i);
+        if (event.isCancelled() || event.blockList().isEmpty()) return;
+        final Map<Block, Inventory> shops = findShops(event.blockList());
+        if (shops.isEmpty()) return;
+        if (allowExplosion) {
+            Set<ShopLocation> removed = new HashSet<>();
+            for (Inventory inv : shops.values()) {
+                Shop shop = Shop.fromInventory(inv);
+                // both halves of a double chest lead to the same shop
+                if (shop == null || !removed.add(shop.getLocation())) continue;
+                ShopRepository.remove(shop);
+                Shop.removeShop(shop.getLocation());
+            }
+        } else {
+            event.blockList().removeIf(shops::containsKey);
+        }
+    }
+
+    // only blocks at or next to a shop position get a state snapshot
+    private Map<Block, Inventory> findShops(List<Block> blocks) {
+        Map<Block, Inventory> shops = new IdentityHashMap<>();
+        for (Block b : nearShops(ShopRepository.getIndex(), blocks)) {
             if (!canBeShop(b)) continue;
             Inventory inv = ((InventoryHolder) b.getState()).getInventory();
-            if (Shop.isShop(inv)) {
-                if (allowExplosion) {
-                    Shop shop = Shop.fromInventory(inv);
-                    if (shop == null) return;
-                    ShopRepository.remove(shop);
-                    Shop.removeShop(shop.getLocation());
-                } else {
-                    event.blockList().remove(i);
-                    i--;
-                }
+            if (Shop.isShop(inv)) shops.put(b, inv);
+        }
+        return shops;
+    }
+
+    // the blocks at or next to a shop position, from one index query that covers the whole area
+    static List<Block> nearShops(ShopIndex index, List<Block> blocks) {
+        List<Block> near = new ArrayList<>();
+        String world = blocks.get(0).getWorld().getName();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (Block b : blocks) {
+            minX = Math.min(minX, b.getX());
+            minY = Math.min(minY, b.getY());
+            minZ = Math.min(minZ, b.getZ());
+            maxX = Math.max(maxX, b.getX());
+            maxY = Math.max(maxY, b.getY());
+            maxZ = Math.max(maxZ, b.getZ());
+        }
+        // a double chest shop is stored at its lower half, which may be just outside the area
+        List<ShopLocation> found = index.within(world, minX - 1, minY, minZ - 1, maxX, maxY, maxZ);
+        if (found.isEmpty()) return near;
+        Set<Long> positions = new HashSet<>();
+        for (ShopLocation l : found) {
+            positions.add(l.pack());
+        }
+        for (Block b : blocks) {
+            int x = b.getX(), y = b.getY(), z = b.getZ();
+            if (positions.contains(ShopLocation.pack(x, y, z)) || positions.contains(ShopLocation.pack(x - 1, y, z))
+                    || positions.contains(ShopLocation.pack(x, y, z - 1))) {
+                near.add(b);
             }
         }
+        return near;
     }
 
     @EventHandler
     public void onBlockBurn(BlockBurnEvent event) {
-        if (!canBeShop(event.getBlock())) return;
+        if (!mayBeShop(event.getBlock())) return;
         Inventory inv = ((InventoryHolder) event.getBlock().getState()).getInventory();
         if (Shop.isShop(inv)) event.setCancelled(true);
     }
@@ -182,7 +258,7 @@ public class FancyShop extends JavaPlugin implements Listener {
         if (event.getBlock().getType() == Material.HOPPER) {
             if (allowHoppers) return;
             Block above = event.getBlock().getRelative(BlockFace.UP);
-            if (!canBeShop(above)) return;
+            if (!mayBeShop(above)) return;
             Inventory inv = ((InventoryHolder) above.getState()).getInventory();
             if (!Shop.isShop(inv)) return;
             Shop shop = Shop.fromInventory(inv);
@@ -205,26 +281,79 @@ public class FancyShop extends JavaPlugin implements Listener {
             }
             if (shop == null) return;
             Chat.s(event.getPlayer(), I18n.s("place.confirm"));
-            ShopRepository.remove(shop);
-            Shop.removeShop(shop.getLocation());
-            Shop.removeShop(new ShopLocation(dc.getHolder().getLocation()));
-            shop.setLocation(new ShopLocation(dc.getHolder().getLocation()));
-            ShopRepository.store(shop);
+            ShopLocation from = shop.getLocation();
+            ShopLocation to = new ShopLocation(dc.getHolder().getLocation());
+            Shop.removeShop(from);
+            Shop.removeShop(to);
+            shop.setLocation(to);
+            Shop.addShop(shop);
+            if (from.equals(to)) {
+                ShopRepository.store(shop);
+            } else {
+                ShopRepository.relocate(shop, from);
+            }
         }
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        ShopChunkLoader.chunkLoaded(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        ShopChunkLoader.chunkUnloaded(event.getChunk());
+    }
+
     @EventHandler
     public void onInventoryMove(InventoryMoveItemEvent event) {
-        if (allowHoppers) return;
-        if (allowHoppersIn && event.getInitiator().getHolder() instanceof Hopper)
-            return; // allow hoppers to work because only the owner can place them
+        if (allowHoppers || (allowHoppersIn && event.getInitiator().getHolder() instanceof Hopper)) {
+            // allowed, only the owner can place hoppers; the shops involved have to recount their chest
+            stockChanged(event.getSource());
+            stockChanged(event.getDestination());
+            return;
+        }
+        if (!mayBeShop(event.getSource()) && !mayBeShop(event.getDestination())) return;
         if (!Shop.isShop(event.getSource()) && !Shop.isShop(event.getDestination())) return;
         event.setCancelled(true);
     }
 
-    private boolean canBeShop(Block block) {
+    private static void stockChanged(Inventory inv) {
+        if (!mayBeShop(inv)) return;
+        Shop shop = Shop.fromInventory(inv);
+        if (shop != null) shop.invalidateStock();
+    }
+
+    private static boolean canBeShop(Block block) {
         if (block == null) return false;
         return block.getState() instanceof InventoryHolder;
     }
+
+    private static boolean mayBeShop(Block block) {
+        return mayBeShop(ShopRepository.getIndex(), block);
+    }
+
+    private static boolean mayBeShop(Inventory inv) {
+        return mayBeShop(ShopRepository.getIndex(), inv);
+    }
+
+    // canBeShop, after ruling out blocks that aren't near a shop without a snapshot; for events on existing shops only
+    static boolean mayBeShop(ShopIndex index, Block block) {
+        if (block == null) return false;
+        if (!index.mayContain(block.getWorld().getName(), block.getX(), block.getY(), block.getZ())) return false;
+        return canBeShop(block);
+    }
+
+    // the player's own inventory, crafting grids and the like are ruled out by their type before their location
+    static boolean mayBeShop(ShopIndex index, Inventory inv) {
+        if (NOT_CONTAINERS.contains(inv.getType())) return false;
+        Location l = inv.getLocation();
+        return l != null && index.mayContain(l.getWorld().getName(), l.getBlockX(), l.getBlockY(), l.getBlockZ());
+    }
+
+    // the holders Shop.isShop accepts
+    static boolean isContainer(InventoryHolder holder) {
+        return holder instanceof BlockState || holder instanceof DoubleChest;
+    }
 }
 
@@ -11,17 +11,33 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import static net.miscjunk.fancyshop.PendingCommand.Type.CLONE_STAGE_TWO;
 
 public class FancyShopCommandExecutor implements CommandExecutor {
+    private static final int NEAR_RADIUS = 50;
+    private static final int NEAR_MAX_RADIUS = 500;
+    private static final int NEAR_LIMIT = 10;
+    private static final int HISTORY_HOURS = 24;
+    private static final int HISTORY_MAX_HOURS = 24 * 90;
+    private static final int HISTORY_LIMIT = 10;
+
     private FancyShop plugin;
     boolean flagsInstalled;
     Map<UUID, PendingCommand> pending;
@@ -63,7 +79,23 @@ public class FancyShopCommandExecutor implements CommandExecutor {
             rename(p, cmd, label, args);
         } else if (args[0].equals("clone")) { // simpleauthority start
             clone(p, cmd, label, args);
-        } else { // simpleauthority end
+        } else if (args[0].equals("stats")) { // simpleauthority end
+            stats(p, cmd, label, args);
+        } else if (args[0].equals("near")) {
+            near(p, cmd, label, args);
+        } else if (args[0].equals("history")) {
+            history(p, cmd, label, args);
+        } else if (args[0].equals("reload")) {
+            reload(p, cmd, label, args);
+        } else if (args[0].equals("migrate")) {
+            migrate(p, cmd, label, args);
+        } else if (args[0].equals("backup")) {
+            backup(p, cmd, label, args);
+        } else if (args[0].equals("export")) {
+            export(p, cmd, label, args);
+        } else if (args[0].equals("import")) {
+            importShops(p, cmd, label, args);
+        } else {
             printUsage(sender);
         }
         return true;
@@ -116,6 +148,13 @@ public class FancyShopCommandExecutor implements CommandExecutor {
                 }
                 break;
             // simpleauthority ned
+            case HISTORY:
+                if (event.getClickedBlock() != null && event.getClickedBlock().getState() instanceof InventoryHolder) {
+                    event.setCancelled(true);
+                    history(event.getPlayer(), ((InventoryHolder) event.getClickedBlock().getState()).getInventory(),
+                            Integer.parseInt(cmd.getArgs()[0]));
+                }
+                break;
         }
     }
 
@@ -148,7 +187,7 @@ public class FancyShopCommandExecutor implements CommandExecutor {
             Chat.s(player, I18n.s("create.confirm"));
             Chat.i(player, I18n.s("create.confirm2"));
             Chat.i(player, I18n.s("create.confirm3"));
-            shop.edit(player);
+            shop.edit(player, plugin);
         }
         clearPending(player);
     }
@@ -191,6 +230,69 @@ public class FancyShopCommandExecutor implements CommandExecutor {
         clearPending(player);
     }
 
+    private void history(Player player, Inventory inv, int hours) {
+        TradeLedger ledger = TradeLedger.getInstance();
+        if (!Shop.isShop(inv)) {
+            Chat.e(player, I18n.s("history.no-shop"));
+        } else if (ledger == null) {
+            Chat.e(player, I18n.s("history.disabled"));
+        } else {
+            Shop shop = Shop.fromInventory(inv);
+            if (shop == null) return;
+            if (!shop.getOwner().equals(player.getUniqueId()) && !player.hasPermission("fancyshop.remove")) {
+                Chat.e(player, I18n.s("history.owner"));
+            } else {
+                readHistory(player, ledger, shop, hours);
+            }
+        }
+        clearPending(player);
+    }
+
+    // the ledger only has fingerprints, so items and prices are named after the shop's current deals
+    private void readHistory(Player player, final TradeLedger ledger, Shop shop, final int hours) {
+        final Map<Long, String> items = new HashMap<>();
+        final Map<Integer, String> prices = new HashMap<>();
+        for (Deal deal : shop.deals) {
+            ItemStack item = deal.getItemTemplate();
+            items.put(TradeLedger.fingerprint(item), CurrencyManager.itemName(item));
+            for (ItemStack price : new ItemStack[]{deal.getBuyTemplate(), deal.getSellTemplate()}) {
+                if (price != null) prices.put(TradeLedger.currencyFingerprint(price), CurrencyManager.itemName(price));
+            }
+        }
+        final ShopLocation location = shop.getLocation();
+        final long to = System.currentTimeMillis();
+        final long from = to - TimeUnit.HOURS.toMillis(hours);
+        runAsync(player, "history.error", new StorageTask() {
+            public String run() throws Exception {
+                final int[] totals = new int[4]; // trades and items bought by players, then sold by them
+                final Deque<TradeLedger.Trade> recent = new ArrayDeque<>();
+                ledger.scan(from, to, location, trade -> {
+                    int i = trade.getType() == TradeLedger.BUY ? 0 : 2;
+                    totals[i]++;
+                    totals[i + 1] += trade.getQuantity();
+                    if (recent.size() == HISTORY_LIMIT) recent.removeFirst();
+                    recent.addLast(trade);
+                    return true;
+                });
+                if (recent.isEmpty()) return I18n.s("history.none", hours);
+                StringBuilder sb = new StringBuilder(I18n.s("history.summary", hours, totals[0], totals[1], totals[2],
+                        totals[3]));
+                Iterator<TradeLedger.Trade> it = recent.descendingIterator();
+                while (it.hasNext()) {
+                    TradeLedger.Trade trade = it.next();
+                    String name = Bukkit.getOfflinePlayer(trade.getPlayer()).getName();
+                    String item = items.get(trade.getItem());
+                    String price = prices.get(trade.getCurrency());
+                    sb.append('\n').append(I18n.s(trade.getType() == TradeLedger.BUY ? "history.buy" : "history.sell",
+                            name == null ? "?" : name, trade.getQuantity(), item == null ? "?" : item,
+                            trade.getPrice(), price == null ? "?" : price,
+                            TimeUnit.MILLISECONDS.toMinutes(to - trade.getTime())));
+                }
+                return sb.toString();
+            }
+        });
+    }
+
     private void remove(Player player, Command cmd, String label, String[] args) {
         if (!player.hasPermission("fancyshop.create")) { //not typo - can't remove if we can't create
             Chat.e(player, I18n.s("remove.permission"));
@@ -269,6 +371,209 @@ public class FancyShopCommandExecutor implements CommandExecutor {
         Chat.s(player, I18n.s("currency.confirm", name.toString()));
     }
 
+    private void stats(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.stats")) {
+            Chat.e(player, I18n.s("stats.permission"));
+            return;
+        }
+        ShopWriter writer = ShopRepository.getWriter();
+        Chat.i(player, I18n.s("stats.writer", writer.getQueueDepth(), writer.getWriteCount(), writer.getCoalescedCount()));
+        Chat.i(player, I18n.s("stats.flush", writer.getLastFlushMillis(), writer.getAverageFlushMillis(),
+                writer.getMaxFlushMillis(), writer.getFlushCount()));
+        Chat.i(player, I18n.s("stats.unsaved", Shop.changedShops.size()));
+        Chat.i(player, I18n.s("stats.templates", ItemTemplates.size()));
+        Chat.i(player, I18n.s("stats.cache", Shop.cache.size(), Shop.cache.getHits(), Shop.cache.getMisses(),
+                Shop.cache.getEvictions()));
+        Chat.i(player, I18n.s("stats.misses", Shop.cache.missCount(), Shop.cache.getMissHits()));
+    }
+
+    private void near(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.near")) {
+            Chat.e(player, I18n.s("near.permission"));
+            return;
+        }
+        int radius = NEAR_RADIUS;
+        if (args.length > 1) {
+            try {
+                radius = Math.max(1, Math.min(Integer.parseInt(args[1]), NEAR_MAX_RADIUS));
+            } catch (NumberFormatException e) {
+                Chat.e(player, I18n.s("near.usage"));
+                return;
+            }
+        }
+        Location l = player.getLocation();
+        List<ShopLocation> shops = ShopRepository.getIndex().near(l.getWorld().getName(), l.getBlockX(),
+                l.getBlockY(), l.getBlockZ(), radius);
+        if (shops.isEmpty()) {
+            Chat.i(player, I18n.s("near.none", radius));
+            return;
+        }
+        Chat.i(player, I18n.s("near.found", shops.size(), radius));
+        for (ShopLocation s : shops.subList(0, Math.min(shops.size(), NEAR_LIMIT))) {
+            Shop shop = Shop.cache.peek(s);
+            String name = shop == null ? I18n.s("near.unloaded") : shop.getName();
+            long distance = Math.round(Math.sqrt(ShopIndex.distanceSquared(s, l.getBlockX(), l.getBlockY(),
+                    l.getBlockZ())));
+            Chat.i(player, I18n.s("near.shop", name, s.getX(), s.getY(), s.getZ(), distance));
+        }
+    }
+
+    private void history(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.history")) {
+            Chat.e(player, I18n.s("history.permission"));
+            return;
+        }
+        int hours = HISTORY_HOURS;
+        if (args.length > 2) {
+            Chat.e(player, I18n.s("history.usage"));
+            return;
+        } else if (args.length == 2) {
+            try {
+                hours = Math.max(1, Math.min(Integer.parseInt(args[1]), HISTORY_MAX_HOURS));
+            } catch (NumberFormatException e) {
+                Chat.e(player, I18n.s("history.usage"));
+                return;
+            }
+        }
+        Chat.i(player, I18n.s("history.prompt"));
+        setPending(player, new PendingCommand(PendingCommand.Type.HISTORY, String.valueOf(hours)));
+    }
+
+    private void reload(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.reload")) {
+            Chat.e(player, I18n.s("reload.permission"));
+            return;
+        }
+        I18n.reload(plugin);
+        Chat.s(player, I18n.s("reload.confirm", I18n.getLocale()));
+    }
+
+    private void migrate(final Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.migrate")) {
+            Chat.e(player, I18n.s("migrate.permission"));
+            return;
+        }
+        if (args.length != 3) {
+            Chat.e(player, I18n.s("migrate.usage"));
+            return;
+        }
+        final String from = args[1];
+        final String to = args[2];
+        // the copy reads the stored state, so everything queued so far has to be in it
+        ShopRepository.checkpoint();
+        final long timeout = writeTimeout();
+        Chat.i(player, I18n.s("migrate.start", from, to));
+        runAsync(player, "migrate.error", new StorageTask() {
+            public String run() throws Exception {
+                ShopRepository.awaitWrites(timeout);
+                long start = System.currentTimeMillis();
+                int count = ShopRepository.migrate(from, to);
+                return I18n.s("migrate.confirm", count, from, to, System.currentTimeMillis() - start);
+            }
+        });
+    }
+
+    private void backup(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.backup")) {
+            Chat.e(player, I18n.s("backup.permission"));
+            return;
+        }
+        ShopRepository.checkpoint();
+        final long timeout = writeTimeout();
+        Chat.i(player, I18n.s("backup.start"));
+        runAsync(player, "backup.error", new StorageTask() {
+            public String run() throws Exception {
+                ShopRepository.awaitWrites(timeout);
+                return I18n.s("backup.confirm", ShopRepository.backup().getName());
+            }
+        });
+    }
+
+    private void export(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.backup")) {
+            Chat.e(player, I18n.s("backup.permission"));
+            return;
+        }
+        ShopRepository.checkpoint();
+        final long timeout = writeTimeout();
+        Chat.i(player, I18n.s("export.start"));
+        runAsync(player, "export.error", new StorageTask() {
+            public String run() throws Exception {
+                ShopRepository.awaitWrites(timeout);
+                return I18n.s("export.confirm", ShopRepository.export().getName());
+            }
+        });
+    }
+
+    private void importShops(Player player, Command cmd, String label, String[] args) {
+        if (!player.hasPermission("fancyshop.backup")) {
+            Chat.e(player, I18n.s("backup.permission"));
+            return;
+        }
+        if (args.length != 2) {
+            Chat.e(player, I18n.s("import.usage"));
+            return;
+        }
+        final File file;
+        try {
+            file = ShopRepository.getExport(args[1]);
+        } catch (IOException e) {
+            Chat.e(player, I18n.s("import.error", e.getMessage()));
+            return;
+        }
+        if (file == null || !file.isFile()) {
+            Chat.e(player, I18n.s("import.not-found", args[1]));
+            return;
+        }
+        final long timeout = writeTimeout();
+        Chat.i(player, I18n.s("import.start", file.getName()));
+        runAsync(player, "import.error", new StorageTask() {
+            public String run() throws Exception {
+                return I18n.s("import.confirm", ShopRepository.importShops(file, timeout), file.getName());
+            }
+        });
+    }
+
+    private long writeTimeout() {
+        return plugin.getConfig().getLong("shutdown-timeout", 30) * 1000;
+    }
+
+    private interface StorageTask {
+        // off the main thread, returns the message to send when done
+        String run() throws Exception;
+    }
+
+    private void runAsync(Player player, final String errorKey, final StorageTask task) {
+        final UUID playerId = player.getUniqueId();
+        new BukkitRunnable() {
+            public void run() {
+                String message;
+                boolean success;
+                try {
+                    message = task.run();
+                    success = true;
+                } catch (Exception e) {
+                    plugin.getLogger().log(Level.SEVERE, "Storage command failed", e);
+                    message = I18n.s(errorKey, e.getMessage());
+                    success = false;
+                }
+                final String result = message;
+                final boolean ok = success;
+                new BukkitRunnable() {
+                    public void run() {
+                        Player p = Bukkit.getPlayer(playerId);
+                        if (p == null) return;
+                        if (ok) {
+                            Chat.s(p, result);
+                        } else {
+                            Chat.e(p, result);
+                        }
+                    }
+                }.runTask(plugin);
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
     // simpleauthority start
     private void clone(Player player, Command cmd, String label, String[] args) {
         if (!player.hasPermission("fancyshop.clone")) {
@@ -319,8 +624,8 @@ public class FancyShopCommandExecutor implements CommandExecutor {
         Shop shopTo = shopFrom.clone(new ShopLocation(to.getLocation()));
         Chat.s(player, I18n.s("clone.shop-copied"));
         ShopRepository.store(shopTo);
-        Shop.shopMap.put(shopTo.location, shopTo);
-        shopTo.edit(player);
+        Shop.addShop(shopTo);
+        shopTo.edit(player, plugin);
         clearPending(player);
     }
     // simpleauthority end
@@ -392,5 +697,23 @@ public class FancyShopCommandExecutor implements CommandExecutor {
         if (sender instanceof Player && ((Player) sender).hasPermission("fancyshop.currency")) {
             Chat.i(sender, I18n.s("usage.currency"));
         }
+        if (sender instanceof Player && sender.hasPermission("fancyshop.near")) {
+            Chat.i(sender, I18n.s("usage.near"));
+        }
+        if (sender instanceof Player && sender.hasPermission("fancyshop.history")) {
+            Chat.i(sender, I18n.s("usage.history"));
+        }
+        if (sender instanceof Player && sender.hasPermission("fancyshop.stats")) {
+            Chat.i(sender, I18n.s("usage.stats"));
+        }
+        if (sender instanceof Player && sender.hasPermission("fancyshop.reload")) {
+            Chat.i(sender, I18n.s("usage.reload"));
+        }
+        if (sender instanceof Player && sender.hasPermission("fancyshop.migrate")) {
+            Chat.i(sender, I18n.s("usage.migrate"));
+        }
+        if (sender instanceof Player && sender.hasPermission("fancyshop.backup")) {
+            Chat.i(sender, I18n.s("usage.backup"));
+        }
     }
 }
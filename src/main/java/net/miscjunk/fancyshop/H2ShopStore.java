@@ -0,0 +1,94 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Embedded H2 store in shops.mv.db, next to the SQLite database.
+public class H2ShopStore extends JdbcShopStore {
+    private static final int SCHEMA_VERSION = 2;
+    private final String url;
+
+    public H2ShopStore(Plugin plugin) {
+        super(plugin);
+        url = "jdbc:h2:" + plugin.getDataFolder().getAbsolutePath() + File.separator + "shops";
+    }
+
+    public void open() throws StoreException {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new StoreException("Couldn't load H2 library", e);
+        }
+        super.open();
+    }
+
+    protected Connection connect() throws SQLException {
+        return DriverManager.getConnection(url);
+    }
+
+    public File backup(File directory, String name) throws StoreException {
+        File target = new File(directory, name + ".zip");
+        try {
+            Connection conn = connect();
+            try {
+                conn.createStatement().execute("BACKUP TO '" + target.getAbsolutePath().replace("'", "''") + "'");
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't back up to " + target, e);
+        }
+        return target;
+    }
+
+    protected String upsertDealSql() {
+        return "MERGE INTO deals (id, shop_id, item, buy_price, sell_price) KEY (id) VALUES (?,?,?,?,?)";
+    }
+
+    protected void updateSchema() throws SQLException {
+        Statement stmt = db.createStatement();
+        stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INT NOT NULL)");
+        ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version");
+        int version = rs.next() ? rs.getInt(1) : 0;
+        rs.close();
+        if (version > SCHEMA_VERSION) {
+            throw new RuntimeException("Database is newer than plugin version");
+        }
+        if (version < 1) {
+            stmt.execute("CREATE TABLE shops (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY," +
+                    "world VARCHAR NOT NULL," +
+                    "x INT NOT NULL," +
+                    "y INT NOT NULL," +
+                    "z INT NOT NULL," +
+                    "owner VARCHAR NOT NULL," +
+                    "is_admin BOOLEAN NOT NULL DEFAULT FALSE," +
+                    "name VARCHAR NOT NULL DEFAULT ''" +
+                    ")");
+            stmt.execute("CREATE UNIQUE INDEX shops_location ON shops (world, x, y, z)");
+            stmt.execute("CREATE TABLE deals (" +
+                    "id BIGINT PRIMARY KEY," +
+                    "shop_id BIGINT NOT NULL," +
+                    "item VARBINARY NOT NULL," +
+                    "buy_price VARBINARY," +
+                    "sell_price VARBINARY" +
+                    ")");
+            stmt.execute("CREATE INDEX deals_shop ON deals (shop_id, id)");
+            stmt.execute("INSERT INTO schema_version VALUES (1)");
+        }
+        if (version < 2) {
+            stmt.execute("ALTER TABLE shops ADD COLUMN cx INT NOT NULL DEFAULT 0");
+            stmt.execute("ALTER TABLE shops ADD COLUMN cz INT NOT NULL DEFAULT 0");
+            stmt.execute("UPDATE shops SET cx = CAST(FLOOR(x / 16.0) AS INT), cz = CAST(FLOOR(z / 16.0) AS INT)");
+            stmt.execute("CREATE INDEX shops_chunk ON shops (world, cx, cz)");
+            stmt.execute("INSERT INTO schema_version VALUES (2)");
+        }
+        stmt.close();
+    }
+}
@@ -1,47 +1,162 @@
 package net.miscjunk.fancyshop;
 
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+// The messages of the configured locale, compiled from strings.yml with en_US filling the gaps. A strings.yml in the
+// data folder overrides the bundled messages. Messages are split into text and arguments once, so formatting doesn't
+// parse them again.
 public class I18n {
-    private static I18n instance;
+    private static final String FALLBACK = "en_US";
+    // the same syntax java.util.Formatter accepts
+    private static final Pattern SPECIFIER =
+            Pattern.compile("%(\\d+\\$)?([-#+ 0,(<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
 
-    private FancyShop plugin;
-    private FileConfiguration config;
-    private String locale;
+    private static volatile I18n instance;
 
-    private I18n(FancyShop plugin) {
-        this.plugin = plugin;
+    private final String locale;
+    private final Map<String, Template> messages;
 
+    private static class Template {
+        final String raw;
+        // text before each argument, and after the last one; null if the message needs String.format
+        final String[] text;
+        // "s" or "d" for a plain argument, otherwise a format for just that argument
+        final String[] specs;
+
+        Template(String raw) {
+            this.raw = raw;
+            List<String> text = new ArrayList<>();
+            List<String> specs = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            Matcher m = SPECIFIER.matcher(raw);
+            int end = 0;
+            boolean plain = true;
+            while (m.find()) {
+                sb.append(raw, end, m.start());
+                end = m.end();
+                String conversion = m.group(6);
+                if (conversion.equals("%")) {
+                    sb.append('%');
+                } else if (conversion.equals("n")) {
+                    sb.append(System.lineSeparator());
+                } else if (m.group(1) != null || (m.group(2) != null && m.group(2).contains("<"))) {
+                    plain = false; // arguments out of order
+                    break;
+                } else {
+                    text.add(sb.toString());
+                    sb.setLength(0);
+                    boolean bare = m.end() - m.start() == 2;
+                    specs.add(bare && (conversion.equals("s") || conversion.equals("d")) ? conversion : m.group());
+                }
+            }
+            sb.append(raw, end, raw.length());
+            text.add(sb.toString());
+            this.text = plain ? text.toArray(new String[0]) : null;
+            this.specs = specs.toArray(new String[0]);
+        }
+
+        String format(Object[] params) {
+            if (text == null || params.length < specs.length) return String.format(raw, params);
+            StringBuilder sb = new StringBuilder(raw.length() + 8 * specs.length);
+            for (int i = 0; i < specs.length; i++) {
+                sb.append(text[i]);
+                Object param = params[i];
+                String spec = specs[i];
+                if (spec.equals("s") || (spec.equals("d") && (param instanceof Integer || param instanceof Long))) {
+                    sb.append(param);
+                } else {
+                    sb.append(String.format(spec.length() == 1 ? "%" + spec : spec, param));
+                }
+            }
+            sb.append(text[specs.length]);
+            return sb.toString();
+        }
+    }
+
+    private I18n(String locale, Map<String, Template> messages) {
+        this.locale = locale;
+        this.messages = messages;
+    }
+
+    private static I18n load(Plugin plugin, String locale) {
         InputStream defConfigStream = plugin.getResource("strings.yml");
         if (defConfigStream == null) throw new IllegalStateException("No strings.yml found");
 
-        this.config = YamlConfiguration.loadConfiguration(new InputStreamReader(defConfigStream));
-        this.locale = plugin.getConfig().getString("locale");
+        FileConfiguration config = YamlConfiguration.loadConfiguration(new InputStreamReader(defConfigStream));
+        File file = new File(plugin.getDataFolder(), "strings.yml");
+        FileConfiguration overrides = file.exists() ? YamlConfiguration.loadConfiguration(file) : null;
+        Map<String, Template> messages = new HashMap<>();
+        compile(config.getConfigurationSection(FALLBACK), messages);
+        if (overrides != null) compile(overrides.getConfigurationSection(FALLBACK), messages);
+        if (!FALLBACK.equals(locale)) {
+            ConfigurationSection section = config.getConfigurationSection(locale);
+            ConfigurationSection override = overrides == null ? null : overrides.getConfigurationSection(locale);
+            if (section == null && override == null) {
+                Bukkit.getLogger().warning("[FancyShop] No strings for locale " + locale + ", using " + FALLBACK);
+            } else {
+                compile(section, messages);
+                compile(override, messages);
+            }
+        }
+        return new I18n(locale, Collections.unmodifiableMap(messages));
     }
 
-    private String get(String path) {
-        String translation = config.getConfigurationSection(locale).getString(path);
-        if (translation == null) translation = config.getConfigurationSection("en_US").getString(path);
-        return translation;
+    private static void compile(ConfigurationSection section, Map<String, Template> into) {
+        if (section == null) return;
+        for (String path : section.getKeys(true)) {
+            if (section.isConfigurationSection(path)) continue;
+            into.put(path, new Template(section.getString(path)));
+        }
     }
 
-    public static void init(FancyShop plugin) {
+    public static void init(Plugin plugin) {
         if (instance != null) throw new IllegalStateException("Already initialized I18n");
-        instance = new I18n(plugin);
+        instance = load(plugin, plugin.getConfig().getString("locale"));
     }
 
-    public static String s(String path) {
+    // only the locale is read from config.yml again, the settings the rest of the plugin caches stay as they were.
+    // Messages already shown stay as they are, deal lore is rendered again on the next refresh
+    public static void reload(Plugin plugin) {
         if (instance == null) throw new IllegalStateException("I18n not initialized");
-        return instance.get(path);
+        String locale = instance.locale;
+        File file = new File(plugin.getDataFolder(), "config.yml");
+        if (file.exists()) locale = YamlConfiguration.loadConfiguration(file).getString("locale", locale);
+        plugin.getConfig().set("locale", locale);
+        instance = load(plugin, locale);
+        Deal.invalidateLore();
     }
 
+    private static Template get(String path) {
+        I18n i = instance;
+        if (i == null) throw new IllegalStateException("I18n not initialized");
+        return i.messages.get(path);
+    }
+
+    // unformatted; null if there is no such message
+    public static String s(String path) {
+        Template t = get(path);
+        return t == null ? null : t.raw;
+    }
+
+    // formatted like String.format; null if there is no such message
     public static String s(String path, Object... params) {
-        if (instance == null) throw new IllegalStateException("I18n not initialized");
-        return String.format(instance.get(path), params);
+        Template t = get(path);
+        return t == null ? null : t.format(params);
     }
 
     public static String getLocale() {
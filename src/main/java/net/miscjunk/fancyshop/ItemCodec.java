@@ -0,0 +1,76 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+
+// The binary item format of the database. Values start with a marker byte and a format version; anything else is the
+// legacy YAML text of CurrencyManager.itemToString.
+public class ItemCodec {
+    private static final byte MARKER = (byte) 0xFE; // never the first byte of UTF-8 text
+    private static final byte VERSION = 1;
+
+    public static byte[] encode(ItemStack item) {
+        if (item == null) return null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MARKER);
+            out.writeByte(VERSION);
+            // length-prefixed so the object stream can't read ahead into the NBT section
+            ByteArrayOutputStream object = new ByteArrayOutputStream(256);
+            BukkitObjectOutputStream objects = new BukkitObjectOutputStream(object);
+            objects.writeObject(item);
+            objects.close();
+            out.writeInt(object.size());
+            object.writeTo(out);
+            // custom NBT that ItemMeta doesn't round-trip, same as the NBTTag the YAML format appends
+            boolean nbt = CurrencyManager.protocolInstall && item.hasItemMeta();
+            out.writeBoolean(nbt);
+            if (nbt) ProtocolLibHook.writeNbt(item, out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Couldn't encode item", e);
+        }
+    }
+
+    // null if the value can't be read
+    public static ItemStack decode(byte[] data) {
+        if (data == null) return null;
+        if (data.length < 2 || data[0] != MARKER) {
+            return CurrencyManager.stringToItem(new String(data, StandardCharsets.UTF_8));
+        }
+        if (data[1] != VERSION) {
+            Bukkit.getLogger().warning("[FancyShop] Unknown item format version " + data[1]);
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 2, data.length - 2));
+            int length = in.readInt();
+            BukkitObjectInputStream objects = new BukkitObjectInputStream(new ByteArrayInputStream(data, 6, length));
+            Object o = objects.readObject();
+            in.skipBytes(length);
+            if (!(o instanceof ItemStack)) return null;
+            ItemStack item = (ItemStack) o;
+            if (in.readBoolean() && CurrencyManager.protocolInstall) item = ProtocolLibHook.readNbt(item, in);
+            return item;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            Bukkit.getLogger().log(Level.WARNING, "[FancyShop] Couldn't decode item", e);
+            return null;
+        }
+    }
+
+    public static boolean isLegacy(byte[] data) {
+        return data != null && (data.length < 2 || data[0] != MARKER);
+    }
+}
@@ -0,0 +1,47 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Interns deal items, so identical items share one template with an amount of 1 and deals only keep their own amount.
+// Templates must never be modified, stack returns a copy that may be. A template is forgotten once no deal refers to
+// it.
+public class ItemTemplates {
+    private static final Map<ItemStack, WeakReference<ItemStack>> templates = new WeakHashMap<>();
+
+    // ignores the amount; safe from loader threads
+    public static ItemStack intern(ItemStack item) {
+        if (item == null) return null;
+        ItemStack key = item;
+        if (item.getAmount() != 1) {
+            key = item.clone();
+            key.setAmount(1);
+        }
+        synchronized (templates) {
+            WeakReference<ItemStack> ref = templates.get(key);
+            ItemStack template = ref == null ? null : ref.get();
+            if (template == null) {
+                // never keep the caller's stack, they may still change it
+                template = key == item ? item.clone() : key;
+                templates.put(template, new WeakReference<>(template));
+            }
+            return template;
+        }
+    }
+
+    public static ItemStack stack(ItemStack template, int amount) {
+        if (template == null) return null;
+        ItemStack it = template.clone();
+        it.setAmount(amount);
+        return it;
+    }
+
+    public static int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.plugin.Plugin;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// Shared code for the SQL stores. One connection serves main thread reads, one the writer thread, one chunk loads, and
+// every loadAll opens its own.
+public abstract class JdbcShopStore implements ShopStore {
+    private static final String SELECT_SHOPS = "SELECT s.id AS shop, s.world, s.x, s.y, s.z, s.owner, s.is_admin, " +
+            "s.name, d.id, d.item, d.buy_price, d.sell_price FROM shops s LEFT JOIN deals d ON d.shop_id = s.id";
+    protected final Plugin plugin;
+    protected Connection db;
+    private final Object writeLock = new Object();
+    private Connection writeDb;
+    private Connection chunkDb;
+    private PreparedStatement chunkQuery;
+
+    protected JdbcShopStore(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    protected abstract Connection connect() throws SQLException;
+
+    protected abstract void updateSchema() throws SQLException;
+
+    // inserts a deal or replaces the row with its id; parameters are id, shop_id, item, buy_price and sell_price
+    protected abstract String upsertDealSql();
+
+    public void open() throws StoreException {
+        try {
+            db = connect();
+            updateSchema();
+            writeDb = connect();
+            writeDb.setAutoCommit(false);
+            chunkDb = connect();
+            chunkQuery = chunkDb.prepareStatement(SELECT_SHOPS + " WHERE s.world=? AND s.cx=? AND s.cz=? ORDER BY s.id, d.id");
+        } catch (SQLException e) {
+            close();
+            throw new StoreException("Couldn't open database", e);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (chunkDb != null) {
+                try {
+                    chunkDb.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                chunkDb = null;
+                chunkQuery = null;
+            }
+        }
+        if (writeDb != null) {
+            try {
+                writeDb.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            writeDb = null;
+        }
+        if (db != null) {
+            try {
+                db.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            db = null;
+        }
+    }
+
+    public Set<ShopLocation> locations() throws StoreException {
+        try (Statement stmt = db.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT world, x, y, z FROM shops")) {
+            Set<ShopLocation> locations = new HashSet<>();
+            while (rs.next()) {
+                locations.add(new ShopLocation(rs.getString(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+            }
+            return locations;
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't read shop locations", e);
+        }
+    }
+
+    public long getLastDealId() throws StoreException {
+        try (Statement stmt = db.createStatement(); ResultSet rs = stmt.executeQuery("SELECT MAX(id) FROM deals")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't read deal ids", e);
+        }
+    }
+
+    protected static void setLocation(PreparedStatement stmt, int index, ShopLocation location) throws SQLException {
+        stmt.setString(index, location.getWorld());
+        stmt.setInt(index + 1, location.getX());
+        stmt.setInt(index + 2, location.getY());
+        stmt.setInt(index + 3, location.getZ());
+    }
+
+    public void write(Iterable<ShopWriter.Write> batch) throws StoreException {
+        // the writer thread and imports share the connection
+        synchronized (writeLock) {
+            try {
+                writeBatch(writeDb, batch);
+                writeDb.commit();
+            } catch (SQLException e) {
+                try {
+                    writeDb.rollback();
+                } catch (SQLException e2) {
+                    e2.printStackTrace();
+                }
+                throw new StoreException("Couldn't save shops", e);
+            }
+        }
+    }
+
+    private void writeBatch(Connection conn, Iterable<ShopWriter.Write> batch) throws SQLException {
+        PreparedStatement findShop = conn.prepareStatement("SELECT id FROM shops WHERE world=? AND x=? AND y=? AND z=?");
+        PreparedStatement insertShop = conn.prepareStatement("INSERT INTO shops (world, x, y, z, owner, is_admin, name, " +
+                "cx, cz) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement updateShop = conn.prepareStatement("UPDATE shops SET owner=?, is_admin=?, name=? WHERE id=?");
+        PreparedStatement moveShop = conn.prepareStatement("UPDATE shops SET world=?, x=?, y=?, z=?, cx=?, cz=? WHERE id=?");
+        PreparedStatement deleteShop = conn.prepareStatement("DELETE FROM shops WHERE id=?");
+        PreparedStatement deleteDeals = conn.prepareStatement("DELETE FROM deals WHERE shop_id=?");
+        PreparedStatement deleteDeal = conn.prepareStatement("DELETE FROM deals WHERE id=?");
+        PreparedStatement updateDeal = conn.prepareStatement("UPDATE deals SET item=?, buy_price=?, sell_price=? WHERE id=?");
+        PreparedStatement insertDeal = conn.prepareStatement(upsertDealSql());
+        try {
+            for (ShopWriter.Write w : batch) {
+                long id = findShopId(findShop, w.location);
+                if (w.isRemoval()) {
+                    if (id == -1) continue;
+                    deleteDeals.setLong(1, id);
+                    deleteDeals.execute();
+                    deleteShop.setLong(1, id);
+                    deleteShop.execute();
+                    continue;
+                }
+                ShopSnapshot shop = w.shop;
+                boolean full = shop.full;
+                if (w.from != null) {
+                    long fromId = findShopId(findShop, w.from);
+                    if (fromId != -1 && id == -1) {
+                        setLocation(moveShop, 1, w.location);
+                        moveShop.setInt(5, w.location.getX() >> 4);
+                        moveShop.setInt(6, w.location.getZ() >> 4);
+                        moveShop.setLong(7, fromId);
+                        moveShop.execute();
+                        id = fromId;
+                    } else if (fromId != -1) {
+                        // something is already stored at the destination, drop the old row and overwrite it
+                        deleteDeals.setLong(1, fromId);
+                        deleteDeals.execute();
+                        deleteShop.setLong(1, fromId);
+                        deleteShop.execute();
+                        full = true;
+                    }
+                }
+                if (id == -1) {
+                    // new shop, nothing of it is in the database yet
+                    setLocation(insertShop, 1, w.location);
+                    insertShop.setString(5, shop.getOwner().toString());
+                    insertShop.setBoolean(6, shop.isAdmin());
+                    insertShop.setString(7, shop.getName());
+                    insertShop.setInt(8, w.location.getX() >> 4);
+                    insertShop.setInt(9, w.location.getZ() >> 4);
+                    insertShop.execute();
+                    id = findShopId(findShop, w.location);
+                    full = true;
+                } else if (full || shop.shopChanged) {
+                    updateShop.setString(1, shop.getOwner().toString());
+                    updateShop.setBoolean(2, shop.isAdmin());
+                    updateShop.setString(3, shop.getName());
+                    updateShop.setLong(4, id);
+                    updateShop.execute();
+                }
+                if (full) {
+                    deleteDeals.setLong(1, id);
+                    deleteDeals.execute();
+                    for (Deal d : shop.getDeals()) {
+                        setDeal(insertDeal, id, d);
+                        insertDeal.addBatch();
+                    }
+                    insertDeal.executeBatch();
+                    continue;
+                }
+                for (Long dealId : shop.removedDeals) {
+                    deleteDeal.setLong(1, dealId);
+                    deleteDeal.execute();
+                }
+                for (Deal d : shop.getDeals()) {
+                    if (!shop.changedDeals.contains(d.getId())) continue;
+                    updateDeal.setBytes(1, ItemCodec.encode(d.getItem()));
+                    updateDeal.setBytes(2, ItemCodec.encode(d.getBuyPrice()));
+                    updateDeal.setBytes(3, ItemCodec.encode(d.getSellPrice()));
+                    updateDeal.setLong(4, d.getId());
+                    if (updateDeal.executeUpdate() == 0) {
+                        setDeal(insertDeal, id, d);
+                        insertDeal.execute();
+                    }
+                }
+            }
+        } finally {
+            findShop.close();
+            insertShop.close();
+            updateShop.close();
+            moveShop.close();
+            deleteShop.close();
+            deleteDeals.close();
+            deleteDeal.close();
+            updateDeal.close();
+            insertDeal.close();
+        }
+    }
+
+    private static void setDeal(PreparedStatement stmt, long shopId, Deal d) throws SQLException {
+        stmt.setLong(1, d.getId());
+        stmt.setLong(2, shopId);
+        stmt.setBytes(3, ItemCodec.encode(d.getItem()));
+        stmt.setBytes(4, ItemCodec.encode(d.getBuyPrice()));
+        stmt.setBytes(5, ItemCodec.encode(d.getSellPrice()));
+    }
+
+    private static long findShopId(PreparedStatement findShop, ShopLocation location) throws SQLException {
+        setLocation(findShop, 1, location);
+        try (ResultSet rs = findShop.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+
+    public ShopSnapshot load(ShopLocation location) throws StoreException {
+        try {
+            ShopSnapshot shop;
+            long id;
+            try (PreparedStatement stmt = db.prepareStatement(
+                    "SELECT * FROM shops WHERE world=? AND x=? AND y=? AND z=?")) {
+                setLocation(stmt, 1, location);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) return null;
+                    UUID owner = UUID.fromString(rs.getString("owner"));
+                    shop = new ShopSnapshot(location, owner, rs.getString("name"), rs.getBoolean("is_admin"),
+                            new ArrayList<Deal>());
+                    id = rs.getLong("id");
+                }
+            }
+            try (PreparedStatement stmt = db.prepareStatement("SELECT * FROM deals WHERE shop_id=? ORDER BY id")) {
+                stmt.setLong(1, id);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Deal d = readDeal(rs);
+                        if (d != null) shop.deals.add(d);
+                    }
+                }
+            }
+            return shop;
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't load shop at " + location, e);
+        }
+    }
+
+    // one pass over the shops joined with their deals, on its own connection
+    public Map<ShopLocation, ShopSnapshot> loadAll(Set<String> worlds) throws StoreException {
+        StringBuilder sql = new StringBuilder(SELECT_SHOPS);
+        if (worlds != null) {
+            sql.append(" WHERE s.world IN (");
+            for (int i = 0; i < worlds.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+            sql.append(")");
+        }
+        sql.append(" ORDER BY s.id, d.id");
+        try (Connection conn = connect(); PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            if (worlds != null) {
+                int i = 1;
+                for (String world : worlds) stmt.setString(i++, world);
+            }
+            return readShops(stmt.executeQuery());
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't load shops", e);
+        }
+    }
+
+    public synchronized Map<ShopLocation, ShopSnapshot> loadChunk(ChunkKey chunk) throws StoreException {
+        if (chunkQuery == null) throw new StoreException("Store is closed");
+        try {
+            chunkQuery.setString(1, chunk.getWorld());
+            chunkQuery.setInt(2, chunk.getX());
+            chunkQuery.setInt(3, chunk.getZ());
+            return readShops(chunkQuery.executeQuery());
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't load shops in " + chunk, e);
+        }
+    }
+
+    public void scan(Visitor visitor) throws StoreException, IOException {
+        // a single query reads one consistent snapshot, however long the visitor takes
+        try (Connection conn = connect(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_SHOPS + " ORDER BY s.id, d.id")) {
+            ShopCursor cursor = new ShopCursor(rs);
+            ShopSnapshot shop;
+            while ((shop = cursor.next()) != null) {
+                visitor.visit(shop);
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't read shops", e);
+        }
+    }
+
+    private static Map<ShopLocation, ShopSnapshot> readShops(ResultSet rs) throws SQLException {
+        Map<ShopLocation, ShopSnapshot> shops = new HashMap<>();
+        try (ResultSet rows = rs) {
+            ShopCursor cursor = new ShopCursor(rows);
+            ShopSnapshot shop;
+            while ((shop = cursor.next()) != null) {
+                shops.put(shop.getLocation(), shop);
+            }
+            return shops;
+        }
+    }
+
+    // groups the rows of SELECT_SHOPS, ordered by shop id, into one snapshot at a time; the caller closes the rows
+    private static class ShopCursor {
+        private final ResultSet rs;
+        private boolean hasRow;
+
+        ShopCursor(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.hasRow = rs.next();
+        }
+
+        ShopSnapshot next() throws SQLException {
+            if (!hasRow) return null;
+            long id = rs.getLong("shop");
+            ShopLocation location = new ShopLocation(rs.getString("world"), rs.getInt("x"), rs.getInt("y"), rs.getInt("z"));
+            UUID owner = UUID.fromString(rs.getString("owner"));
+            ShopSnapshot shop = new ShopSnapshot(location, owner, rs.getString("name"), rs.getBoolean("is_admin"),
+                    new ArrayList<Deal>());
+            do {
+                Deal d = rs.getBytes("item") == null ? null : readDeal(rs);
+                if (d != null) shop.deals.add(d);
+            } while ((hasRow = rs.next()) && rs.getLong("shop") == id);
+            return shop;
+        }
+    }
+
+    private static Deal readDeal(ResultSet rs) throws SQLException {
+        return ShopRepository.decodeDeal(rs.getLong("id"), rs.getBytes("item"), rs.getBytes("buy_price"),
+                rs.getBytes("sell_price"));
+    }
+}
@@ -0,0 +1,443 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.plugin.Plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+// Append-only flat file store. Every batch is appended to shops.log as one checksummed, synced record, and the live
+// shops are kept in memory encoded, so reads never touch the disk. The log is rewritten without dead records once it is
+// twice the size of the live data.
+public class LogShopStore implements ShopStore {
+    private static final int MAGIC = 0x46534C47; // "FSLG"
+    private static final int VERSION = 1;
+    private static final byte STORE = 1;
+    private static final byte REMOVE = 2;
+    private static final long MIN_COMPACT_SIZE = 1 << 20;
+    private static final int RECORD_OVERHEAD = 32; // rough size of the framing and location of a shop
+
+    private final Plugin plugin;
+    private final File file;
+    // guards the file; held across syncs and compaction, while the monitor only guards the maps, so reads on the
+    // main thread never wait for the disk. Taken before the monitor.
+    private final Object io = new Object();
+    private final Map<ShopLocation, byte[]> live = new HashMap<>();
+    private final Map<ChunkKey, Set<ShopLocation>> chunks = new HashMap<>();
+    private FileChannel channel;
+    private long liveBytes;
+    private long lastDealId;
+
+    public LogShopStore(Plugin plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "shops.log");
+    }
+
+    public void open() throws StoreException {
+        synchronized (io) {
+            synchronized (this) {
+                try {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                    if (channel.size() == 0) {
+                        channel.write(header());
+                        channel.force(true);
+                    } else {
+                        replay();
+                    }
+                } catch (IOException e) {
+                    close();
+                    throw new StoreException("Couldn't open " + file, e);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (io) {
+            synchronized (this) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    channel = null;
+                }
+                live.clear();
+                chunks.clear();
+                liveBytes = 0;
+            }
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    // a record cut short by a crash is dropped along with anything after it
+    private void replay() throws IOException, StoreException {
+        long size = channel.size();
+        long position = 8;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        if (size < 8 || in.readInt() != MAGIC) throw new StoreException(file + " is not a shop log");
+        if (in.readInt() != VERSION) throw new StoreException(file + " was written by a newer plugin version");
+        CRC32 crc = new CRC32();
+        while (size - position >= 8) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > size - position - 8) break;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) break;
+            apply(payload);
+            position += 8 + length;
+        }
+        if (position < size) {
+            plugin.getLogger().warning("Discarding " + (size - position) + " bytes of incomplete writes at the end of " +
+                    file.getName());
+            channel.truncate(position);
+        }
+        channel.position(position);
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            ShopLocation location = readLocation(in);
+            if (type == STORE) {
+                byte[] shop = new byte[in.readInt()];
+                in.readFully(shop);
+                put(location, shop);
+                lastDealId = Math.max(lastDealId, maxDealId(shop));
+            } else if (type == REMOVE) {
+                put(location, null);
+            } else {
+                throw new IOException("Unknown record type " + type);
+            }
+        }
+    }
+
+    private void put(ShopLocation location, byte[] shop) {
+        byte[] old = shop == null ? live.remove(location) : live.put(location, shop);
+        if (old != null) liveBytes -= old.length + RECORD_OVERHEAD;
+        if (shop != null) liveBytes += shop.length + RECORD_OVERHEAD;
+        ChunkKey chunk = ChunkKey.of(location);
+        if (shop != null && old == null) {
+            Set<ShopLocation> inChunk = chunks.get(chunk);
+            if (inChunk == null) chunks.put(chunk, inChunk = new HashSet<>());
+            inChunk.add(location);
+        } else if (shop == null && old != null) {
+            Set<ShopLocation> inChunk = chunks.get(chunk);
+            inChunk.remove(location);
+            if (inChunk.isEmpty()) chunks.remove(chunk);
+        }
+    }
+
+    public ShopSnapshot load(ShopLocation location) throws StoreException {
+        byte[] shop;
+        synchronized (this) {
+            shop = live.get(location);
+        }
+        return shop == null ? null : decode(location, shop);
+    }
+
+    public Map<ShopLocation, ShopSnapshot> loadAll(Set<String> worlds) throws StoreException {
+        Map<ShopLocation, byte[]> entries = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<ShopLocation, byte[]> e : live.entrySet()) {
+                if (worlds == null || worlds.contains(e.getKey().getWorld())) entries.put(e.getKey(), e.getValue());
+            }
+        }
+        Map<ShopLocation, ShopSnapshot> shops = new HashMap<>();
+        for (Map.Entry<ShopLocation, byte[]> e : entries.entrySet()) {
+            shops.put(e.getKey(), decode(e.getKey(), e.getValue()));
+        }
+        return shops;
+    }
+
+    public synchronized Set<ShopLocation> locations() {
+        return new HashSet<>(live.keySet());
+    }
+
+    public Map<ShopLocation, ShopSnapshot> loadChunk(ChunkKey chunk) throws StoreException {
+        Map<ShopLocation, byte[]> entries = new HashMap<>();
+        synchronized (this) {
+            Set<ShopLocation> inChunk = chunks.get(chunk);
+            if (inChunk != null) {
+                for (ShopLocation location : inChunk) entries.put(location, live.get(location));
+            }
+        }
+        Map<ShopLocation, ShopSnapshot> shops = new HashMap<>();
+        for (Map.Entry<ShopLocation, byte[]> e : entries.entrySet()) {
+            shops.put(e.getKey(), decode(e.getKey(), e.getValue()));
+        }
+        return shops;
+    }
+
+    public void scan(Visitor visitor) throws StoreException, IOException {
+        Map<ShopLocation, byte[]> entries;
+        synchronized (this) {
+            // the encoded shops are never modified, so copying the references is a consistent view
+            entries = new HashMap<>(live);
+        }
+        for (Map.Entry<ShopLocation, byte[]> e : entries.entrySet()) {
+            visitor.visit(decode(e.getKey(), e.getValue()));
+        }
+    }
+
+    public File backup(File directory, String name) throws StoreException {
+        File target = new File(directory, name + ".log");
+        synchronized (io) {
+            if (channel == null) throw new StoreException("Store is closed");
+            try {
+                channel.force(true);
+                Files.copy(file.toPath(), target.toPath());
+            } catch (IOException e) {
+                throw new StoreException("Couldn't back up to " + target, e);
+            }
+        }
+        return target;
+    }
+
+    public synchronized long getLastDealId() {
+        return lastDealId;
+    }
+
+    public void write(Iterable<ShopWriter.Write> batch) throws StoreException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<ShopLocation, byte[]> changes = new LinkedHashMap<>(); // null for a removal
+        try {
+            for (ShopWriter.Write w : batch) {
+                // a move is just a removal and a store, the log has no rows to update in place
+                if (w.getFrom() != null) {
+                    writeRemove(out, w.getFrom());
+                    changes.put(w.getFrom(), null);
+                }
+                if (w.isRemoval()) {
+                    writeRemove(out, w.getLocation());
+                    changes.put(w.getLocation(), null);
+                } else {
+                    byte[] shop = encode(w.getShop());
+                    writeStore(out, w.getLocation(), shop);
+                    changes.put(w.getLocation(), shop);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new StoreException("Couldn't encode shops", e);
+        }
+        synchronized (io) {
+            if (channel == null) throw new StoreException("Store is closed");
+            long end;
+            try {
+                end = channel.size();
+            } catch (IOException e) {
+                throw new StoreException("Couldn't write to " + file, e);
+            }
+            try {
+                ByteBuffer record = ByteBuffer.wrap(frame(bytes.toByteArray()));
+                while (record.hasRemaining()) channel.write(record);
+                channel.force(false);
+            } catch (IOException e) {
+                // don't leave a torn record in front of the next batch
+                try {
+                    channel.truncate(end);
+                    channel.position(end);
+                } catch (IOException e2) {
+                    e2.printStackTrace();
+                }
+                throw new StoreException("Couldn't write to " + file, e);
+            }
+            long size = end + bytes.size() + 8;
+            Map<ShopLocation, byte[]> snapshot = null;
+            synchronized (this) {
+                for (Map.Entry<ShopLocation, byte[]> e : changes.entrySet()) {
+                    put(e.getKey(), e.getValue());
+                }
+                for (ShopWriter.Write w : batch) {
+                    if (w.isRemoval()) continue;
+                    for (Deal d : w.getShop().getDeals()) lastDealId = Math.max(lastDealId, d.getId());
+                }
+                // only writes change the maps, and they wait for the io lock, so this copy stays current
+                if (size > MIN_COMPACT_SIZE && size > 2 * liveBytes) snapshot = new HashMap<>(live);
+            }
+            if (snapshot != null) compact(snapshot);
+        }
+    }
+
+    // one record per live shop, swapped in with an atomic rename
+    private void compact(Map<ShopLocation, byte[]> shops) throws StoreException {
+        long start = System.currentTimeMillis();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 65536));
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            for (Map.Entry<ShopLocation, byte[]> e : shops.entrySet()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(e.getValue().length + RECORD_OVERHEAD);
+                writeStore(new DataOutputStream(bytes), e.getKey(), e.getValue());
+                stream.write(frame(bytes.toByteArray()));
+            }
+            stream.flush();
+            out.force(true);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Couldn't compact " + file.getName(), e);
+            tmp.delete();
+            return;
+        }
+        boolean replaced = false;
+        try {
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            replaced = true;
+        } catch (IOException e) {
+            // the old log is still complete, keep appending to it
+            plugin.getLogger().log(Level.WARNING, "Couldn't replace " + file.getName() + " with the compacted log", e);
+            tmp.delete();
+        }
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        } catch (IOException e) {
+            channel = null;
+            throw new StoreException("Couldn't reopen " + file + " after compaction", e);
+        }
+        if (replaced) {
+            plugin.getLogger().info("Compacted " + file.getName() + " to " + shops.size() + " shops in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return record.array();
+    }
+
+    private static void writeStore(DataOutput out, ShopLocation location, byte[] shop) throws IOException {
+        out.writeByte(STORE);
+        writeLocation(out, location);
+        out.writeInt(shop.length);
+        out.write(shop);
+    }
+
+    private static void writeRemove(DataOutput out, ShopLocation location) throws IOException {
+        out.writeByte(REMOVE);
+        writeLocation(out, location);
+    }
+
+    private static void writeLocation(DataOutput out, ShopLocation location) throws IOException {
+        out.writeUTF(location.getWorld());
+        out.writeInt(location.getX());
+        out.writeInt(location.getY());
+        out.writeInt(location.getZ());
+    }
+
+    private static ShopLocation readLocation(DataInput in) throws IOException {
+        return new ShopLocation(in.readUTF(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    private static byte[] encode(ShopSnapshot shop) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(shop.getOwner().getMostSignificantBits());
+        out.writeLong(shop.getOwner().getLeastSignificantBits());
+        out.writeUTF(shop.getName());
+        out.writeBoolean(shop.isAdmin());
+        out.writeInt(shop.getDeals().size());
+        for (Deal d : shop.getDeals()) {
+            out.writeLong(d.getId());
+            writeBytes(out, ItemCodec.encode(d.getItem()));
+            writeBytes(out, ItemCodec.encode(d.getBuyPrice()));
+            writeBytes(out, ItemCodec.encode(d.getSellPrice()));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ShopSnapshot decode(ShopLocation location, byte[] data) throws StoreException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            UUID owner = new UUID(in.readLong(), in.readLong());
+            String name = in.readUTF();
+            boolean admin = in.readBoolean();
+            int count = in.readInt();
+            List<Deal> deals = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Deal d = ShopRepository.decodeDeal(in.readLong(), readBytes(in), readBytes(in), readBytes(in));
+                if (d != null) deals.add(d);
+            }
+            return new ShopSnapshot(location, owner, name, admin, deals);
+        } catch (IOException e) {
+            throw new StoreException("Corrupt shop at " + location, e);
+        }
+    }
+
+    private static long maxDealId(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(16);
+        in.readUTF();
+        in.readBoolean();
+        int count = in.readInt();
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, in.readLong());
+            for (int j = 0; j < 3; j++) {
+                int length = in.readInt();
+                if (length > 0 && in.skipBytes(length) != length) throw new EOFException();
+            }
+        }
+        return max;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
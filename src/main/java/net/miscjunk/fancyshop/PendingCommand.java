@@ -3,7 +3,7 @@ package net.miscjunk.fancyshop;
 import org.bukkit.inventory.Inventory;
 
 public class PendingCommand {
-    enum Type {CREATE, REMOVE, SETADMIN, RENAME, CLONE_STAGE_ONE, CLONE_STAGE_TWO}
+    enum Type {CREATE, REMOVE, SETADMIN, RENAME, CLONE_STAGE_ONE, CLONE_STAGE_TWO, HISTORY}
 
     private Type type;
     private String[] args;
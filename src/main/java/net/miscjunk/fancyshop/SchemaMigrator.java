@@ -0,0 +1,137 @@
+package net.miscjunk.fancyshop;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+// Runs SQLite schema upgrades that rewrite every row in chunks, each in its own transaction. The last migrated row is
+// committed with its chunk, so an interrupted upgrade picks up where it stopped on the next start.
+class SchemaMigrator {
+    static final int CHUNK_SIZE = 1000;
+    private static final long LOG_INTERVAL = 5000;
+
+    // one schema version; steps that don't rewrite rows only override begin
+    abstract static class Step {
+        final int version;
+        final String rows;
+        long position; // key of the last migrated row
+
+        Step(int version, String rows) {
+            this.version = version;
+            this.rows = rows;
+        }
+
+        // runs once, in the transaction that starts the step
+        void begin(Connection db) throws SQLException {
+        }
+
+        // runs again when a step is resumed
+        void prepare(Connection db) throws SQLException {
+        }
+
+        // rows after position still to migrate, for progress reporting
+        long remaining(Connection db) throws SQLException {
+            return 0;
+        }
+
+        // migrates up to limit rows after position and advances it; returns the rows read, 0 when done
+        int migrate(int limit) throws SQLException {
+            return 0;
+        }
+
+        // runs in the transaction that completes the step
+        void finish(Connection db) throws SQLException {
+        }
+
+        void close() throws SQLException {
+        }
+
+        static long count(Connection db, String sql, long after) throws SQLException {
+            PreparedStatement stmt = db.prepareStatement(sql);
+            try {
+                stmt.setLong(1, after);
+                ResultSet rs = stmt.executeQuery();
+                return rs.next() ? rs.getLong(1) : 0;
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    private final Connection db;
+    private final Logger logger;
+
+    SchemaMigrator(Connection db, Logger logger) {
+        this.db = db;
+        this.logger = logger;
+    }
+
+    void run(Step step) throws SQLException {
+        db.setAutoCommit(false);
+        try {
+            Statement stmt = db.createStatement();
+            stmt.execute("CREATE TABLE IF NOT EXISTS migration_progress (" +
+                    "version INTEGER PRIMARY KEY," +
+                    "position INTEGER NOT NULL" +
+                    ")");
+            ResultSet rs = stmt.executeQuery("SELECT position FROM migration_progress WHERE version=" + step.version);
+            boolean resumed = rs.next();
+            if (resumed) {
+                step.position = rs.getLong(1);
+                rs.close();
+                logger.info("Resuming database upgrade to v" + step.version);
+            } else {
+                rs.close();
+                step.begin(db);
+                stmt.execute("INSERT INTO migration_progress (version, position) VALUES (" + step.version + ", 0)");
+                db.commit();
+            }
+            step.prepare(db);
+            PreparedStatement save = db.prepareStatement("UPDATE migration_progress SET position=? WHERE version=?");
+            long total = step.remaining(db);
+            long done = 0;
+            long start = System.currentTimeMillis();
+            long lastLog = start;
+            int n;
+            while ((n = step.migrate(CHUNK_SIZE)) > 0) {
+                save.setLong(1, step.position);
+                save.setInt(2, step.version);
+                save.execute();
+                db.commit();
+                done += n;
+                long now = System.currentTimeMillis();
+                if (now - lastLog >= LOG_INTERVAL) {
+                    lastLog = now;
+                    logProgress(step, done, total, now - start);
+                }
+            }
+            save.close();
+            step.finish(db);
+            stmt.execute("DROP TABLE migration_progress");
+            stmt.execute("PRAGMA user_version=" + step.version);
+            db.commit();
+            stmt.close();
+            if (done > 0) {
+                logger.info("Upgraded database to v" + step.version + ": migrated " + done + " " + step.rows + " in " +
+                        (System.currentTimeMillis() - start) / 1000 + "s");
+            }
+        } catch (SQLException | RuntimeException e) {
+            // don't let setAutoCommit commit half a chunk
+            db.rollback();
+            throw e;
+        } finally {
+            step.close();
+            db.setAutoCommit(true);
+        }
+    }
+
+    private void logProgress(Step step, long done, long total, long elapsed) {
+        long percent = total == 0 ? 100 : Math.min(100, done * 100 / total);
+        long left = Math.max(0, total - done) * elapsed / done / 1000;
+        logger.info("Upgrading database to v" + step.version + ": " + done + "/" + total + " " + step.rows +
+                " (" + percent + "%), about " + left + "s left");
+    }
+}
@@ -2,8 +2,10 @@ package net.miscjunk.fancyshop;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.Material;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.DoubleChest;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.inventory.InventoryClickEvent;
@@ -13,21 +15,87 @@ import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.InventoryView;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.util.*;
 
 public class Shop implements InventoryHolder {
+    static final int PAGE_SIZE = 27;
+    static final int MAX_DEALS = PAGE_SIZE * 20;
+    // the navigation row below the deals when a shop has more than one page
+    private static final int PREVIOUS_PAGE = PAGE_SIZE;
+    private static final int PAGE_INFO = PAGE_SIZE + 4;
+    private static final int NEXT_PAGE = PAGE_SIZE + 8;
+
+    // what a view slot was last drawn with
+    private static class Shown {
+        final Deal deal;
+        final ItemStack item;
+        final int amount;
+        final List<String> lore;
+
+        Shown(Deal deal, ItemStack item, int amount, List<String> lore) {
+            this.deal = deal;
+            this.item = item;
+            this.amount = amount;
+            this.lore = lore;
+        }
+    }
+
+    // one page of the customer view, only drawn while someone has it open; otherwise changes just mark it stale
+    private static class Page {
+        final int index;
+        final Inventory inv;
+        final Shown[] shown = new Shown[PAGE_SIZE];
+        int pageCount; // what the navigation row shows
+        boolean stale;
+
+        Page(int index, Inventory inv) {
+            this.index = index;
+            this.inv = inv;
+        }
+    }
+
     ShopLocation location;
     Inventory sourceInv;
-    Inventory viewInv;
     UUID owner;
     String name;
     boolean admin;
     List<Deal> deals;
-    Map<Integer, Deal> dealMap;
+    // the deals customers see, in order, and where each is in that list; the position decides page and slot
+    private final List<Deal> listed = new ArrayList<>();
+    private final Map<Deal, Integer> positions = new IdentityHashMap<>();
+    private final List<Page> pages = new ArrayList<>(); // null for pages nobody opened yet
+    private boolean paged; // whether the pages have a navigation row
+    private Plugin opener; // the plugin the pages were opened through, which moves their viewers when they're rebuilt
+    boolean dirty; // name, owner or admin flag changed since the last save
+    Set<Long> removedDeals = new HashSet<>();
     ShopEditor editor;
-
-    static Map<ShopLocation, Shop> shopMap;
+    // how many of each deal template the chest holds, kept up to date by trades
+    private final Map<ItemStack, int[]> stock = new IdentityHashMap<>();
+    private boolean stockStale = true;
+    private final ShopContents contents = new ShopContents();
+
+    // shops with changes that haven't been queued for saving yet
+    static Set<Shop> changedShops = new LinkedHashSet<>();
+
+    static final ShopCache cache = new ShopCache();
+    private static final long EVICT_INTERVAL = 20 * 20;
+    private static Plugin plugin;
+    private static BukkitTask evictTask;
+    private static boolean evictScheduled;
+    // worlds whose shops are all in the cache, so a miss means "not a shop" without asking the database
+    static Set<String> preloadedWorlds = new HashSet<>();
+    static boolean preloadedAll;
+    // locations looked up, created or removed while a preload is running; the preload must not overwrite them
+    static Set<ShopLocation> touched;
+    // cached shops by chunk, so an unloading chunk's shops can be found without a scan
+    static Map<ChunkKey, Set<ShopLocation>> chunkIndex = new HashMap<>();
+    // loaded chunks whose shops are all in the cache, so a miss means "not a shop"
+    static BlockMap<ChunkKey> scannedChunks = new BlockMap<>();
+    static Map<ChunkKey, ShopChunkLoader.Request> loadingChunks = new HashMap<>();
 
     public Shop(ShopLocation location, Inventory inv, UUID owner, String name, boolean admin) {
         this.location = location;
@@ -35,37 +103,53 @@ public class Shop implements InventoryHolder {
         this.name = name;
         this.admin = admin;
         sourceInv = inv;
-        viewInv = Bukkit.createInventory(this, 27, name);
+        contents.attach(inv);
         deals = new ArrayList<>();
         refreshView();
     }
 
     public static Shop fromInventory(Inventory inv, UUID owner) {
-        if (shopMap == null) shopMap = new HashMap<>();
         InventoryHolder h = inv.getHolder();
         Location l = getLocFromInvHolder(h);
         ShopLocation loc = new ShopLocation(l);
-        if (shopMap.containsKey(loc) && shopMap.get(loc) != null) {
-            return shopMap.get(loc);
+        Shop cached = cache.get(loc);
+        if (cached != null) {
+            return cached;
         } else {
-            Shop shop = ShopRepository.load(loc, inv);
+            Shop shop = isKnown(loc) || cache.isMiss(loc) ? null : ShopRepository.load(loc, inv);
             String name = I18n.s("shop.default-name", Bukkit.getServer().getOfflinePlayer(owner).getName());
             if (shop == null) shop = new Shop(loc, inv, owner, name, false);
-            shopMap.put(loc, shop);
+            addShop(shop);
             return shop;
         }
     }
 
+    public static Shop fromSnapshot(ShopSnapshot snapshot, Inventory inv) {
+        Shop shop = new Shop(snapshot.getLocation(), inv, snapshot.getOwner(), snapshot.getName(), snapshot.isAdmin());
+        for (Deal d : snapshot.getDeals()) {
+            Deal copy = d.copy();
+            copy.setShop(shop);
+            shop.deals.add(copy);
+        }
+        shop.refreshView();
+        return shop;
+    }
+
     public static Shop fromInventory(Inventory inv) {
-        if (shopMap == null) shopMap = new HashMap<>();
         InventoryHolder h = inv.getHolder();
-        Location l = getLocFromInvHolder(h);
-        ShopLocation loc = new ShopLocation(l);
-        if (shopMap.containsKey(loc) && shopMap.get(loc) != null) {
-            return shopMap.get(loc);
-        } else {
-            return null;
+        if (h instanceof BlockState) {
+            BlockState b = (BlockState) h;
+            return cache.get(b.getWorld().getName(), b.getX(), b.getY(), b.getZ());
+        } else if (h instanceof DoubleChest) {
+            DoubleChest dc = (DoubleChest) h;
+            return cache.get(dc.getWorld().getName(), floor(dc.getX()), floor(dc.getY()), floor(dc.getZ()));
         }
+        return null;
+    }
+
+    private static int floor(double d) {
+        int i = (int) d;
+        return d < i ? i - 1 : i;
     }
 
     private static Location getLocFromInvHolder(InventoryHolder h) {
@@ -80,28 +164,235 @@ public class Shop implements InventoryHolder {
         return l;
     }
 
+    // called for every hopper move, so cached shops and known non-shops are looked up without allocating
     public static boolean isShop(Inventory inv) {
-        if (shopMap == null) shopMap = new HashMap<>();
         InventoryHolder h = inv.getHolder();
-        Location l;
+        String world;
+        int x, y, z;
         if (h instanceof BlockState) {
-            l = ((BlockState) h).getLocation();
+            BlockState b = (BlockState) h;
+            world = b.getWorld().getName();
+            x = b.getX();
+            y = b.getY();
+            z = b.getZ();
         } else if (h instanceof DoubleChest) {
-            l = ((DoubleChest) h).getLocation();
+            DoubleChest dc = (DoubleChest) h;
+            world = dc.getWorld().getName();
+            x = floor(dc.getX());
+            y = floor(dc.getY());
+            z = floor(dc.getZ());
         } else {
             return false;
         }
-        ShopLocation loc = new ShopLocation(l);
-        if (!shopMap.containsKey(loc)) shopMap.put(loc, ShopRepository.load(loc, inv));
-        Shop ins = shopMap.get(loc);
-        if (ins != null) ins.updateSourceInv(inv);
-        return (ins != null);
+        Shop ins = cache.get(world, x, y, z);
+        if (ins == null) {
+            if (!ShopRepository.getIndex().contains(world, x, y, z)) return false;
+            if (isKnown(world, x, z) || cache.isMiss(world, x, y, z)) return false;
+            ShopLocation loc = new ShopLocation(world, x, y, z);
+            touch(loc);
+            ins = ShopRepository.load(loc, inv);
+            if (ins == null) {
+                cache.putMiss(loc);
+                return false;
+            }
+            put(loc, ins);
+        }
+        ins.updateSourceInv(inv);
+        return true;
+    }
+
+    public static void addShop(Shop shop) {
+        touch(shop.getLocation());
+        put(shop.getLocation(), shop);
     }
 
     public static void removeShop(ShopLocation loc) {
-        if (shopMap != null) {
-            shopMap.remove(loc);
+        touch(loc);
+        drop(loc);
+    }
+
+    private static void put(ShopLocation loc, Shop shop) {
+        if (cache.put(loc, shop) == null) {
+            ChunkKey chunk = ChunkKey.of(loc);
+            Set<ShopLocation> inChunk = chunkIndex.get(chunk);
+            if (inChunk == null) chunkIndex.put(chunk, inChunk = new HashSet<>());
+            inChunk.add(loc);
+        }
+        if (cache.isFull()) scheduleEviction();
+    }
+
+    private static void drop(ShopLocation loc) {
+        cache.remove(loc);
+        ChunkKey chunk = ChunkKey.of(loc);
+        Set<ShopLocation> inChunk = chunkIndex.get(chunk);
+        if (inChunk != null && inChunk.remove(loc) && inChunk.isEmpty()) chunkIndex.remove(chunk);
+    }
+
+    // the server has the newest state of this location, a background load must not overwrite it
+    private static void touch(ShopLocation loc) {
+        if (touched != null) touched.add(loc);
+        ShopChunkLoader.Request request = loadingChunks.get(ChunkKey.of(loc));
+        if (request != null) request.touched.add(loc);
+    }
+
+    // swaps in a shop that was replaced in the store behind the server's back; main thread only
+    static void replaceShop(ShopSnapshot snapshot) {
+        ShopLocation loc = snapshot.getLocation();
+        cache.removeMiss(loc);
+        if (!cache.contains(loc) && !isKnown(loc)) return; // it will be loaded from the store when needed
+        Shop old = cache.peek(loc);
+        if (old != null) changedShops.remove(old); // its edits are superseded
+        touch(loc);
+        put(loc, fromSnapshot(snapshot, old == null ? null : old.sourceInv));
+    }
+
+    static boolean isPreloaded(String world) {
+        return preloadedAll || preloadedWorlds.contains(world);
+    }
+
+    // whether every shop in this location's chunk is cached
+    private static boolean isKnown(ShopLocation loc) {
+        return isKnown(loc.getWorld(), loc.getX(), loc.getZ());
+    }
+
+    private static boolean isKnown(String world, int x, int z) {
+        return isPreloaded(world) || scannedChunks.get(WorldIds.id(world), ChunkKey.pack(x >> 4, z >> 4)) != null;
+    }
+
+    private static boolean isScanned(ChunkKey chunk) {
+        return scannedChunks.get(WorldIds.id(chunk.getWorld()), chunk.pack()) != null;
+    }
+
+    private static void setScanned(ChunkKey chunk, boolean scanned) {
+        if (scanned) {
+            scannedChunks.put(WorldIds.id(chunk.getWorld()), chunk.pack(), chunk);
+        } else {
+            scannedChunks.remove(WorldIds.id(chunk.getWorld()), chunk.pack());
+        }
+    }
+
+    // a chunk without shops is known to be empty without asking the store
+    static void emptyChunkLoaded(ChunkKey chunk) {
+        if (isPreloaded(chunk.getWorld()) || loadingChunks.containsKey(chunk)) return;
+        setScanned(chunk, true);
+    }
+
+    // returns null if the chunk's shops don't need loading
+    static ShopChunkLoader.Request beginChunkLoad(ChunkKey chunk, Map<ShopLocation, ShopWriter.Write> pending) {
+        if (isPreloaded(chunk.getWorld()) || isScanned(chunk) || loadingChunks.containsKey(chunk)) {
+            return null;
+        }
+        ShopChunkLoader.Request request = new ShopChunkLoader.Request(chunk, pending);
+        loadingChunks.put(chunk, request);
+        return request;
+    }
+
+    // main thread only; writes that were queued when the load started win over what the store returned, and locations
+    // touched in the meantime are left alone
+    static void finishChunkLoad(ShopChunkLoader.Request request) {
+        if (loadingChunks.get(request.chunk) != request) return; // unloaded in the meantime
+        loadingChunks.remove(request.chunk);
+        if (request.result == null) return; // failed, lookups fall back to loading one shop at a time
+        Map<ShopLocation, ShopSnapshot> shops = request.result;
+        for (Map.Entry<ShopLocation, ShopWriter.Write> e : request.pending.entrySet()) {
+            if (e.getValue().isRemoval()) {
+                shops.remove(e.getKey());
+            } else {
+                shops.put(e.getKey(), e.getValue().getShop());
+            }
+        }
+        for (Map.Entry<ShopLocation, ShopSnapshot> e : shops.entrySet()) {
+            if (request.touched.contains(e.getKey()) || cache.contains(e.getKey())) continue;
+            put(e.getKey(), fromSnapshot(e.getValue(), null));
+        }
+        setScanned(request.chunk, true);
+    }
+
+    // shops someone has open stay until the chunk unloads again
+    static void unloadChunk(ChunkKey chunk) {
+        ShopChunkLoader.Request request = loadingChunks.remove(chunk);
+        if (request != null) request.cancelled = true;
+        setScanned(chunk, false);
+        if (isPreloaded(chunk.getWorld())) return; // preloaded worlds stay resident
+        Set<ShopLocation> inChunk = chunkIndex.get(chunk);
+        if (inChunk == null) return;
+        for (ShopLocation loc : new ArrayList<>(inChunk)) {
+            Shop shop = cache.peek(loc);
+            if (shop != null) {
+                if (shop.isInUse()) continue;
+                if (shop.hasChanges()) ShopRepository.storeNow(shop);
+            }
+            drop(loc);
+        }
+    }
+
+    static void startCache(Plugin plugin) {
+        Shop.plugin = plugin;
+        FileConfiguration config = plugin.getConfig();
+        cache.configure(config.getInt("cache-size", 10000), config.getLong("cache-idle", 600) * 1000,
+                config.getInt("cache-miss-size", 10000), config.getLong("cache-miss-ttl", 60) * 1000);
+        if (evictTask != null) evictTask.cancel();
+        evictTask = new BukkitRunnable() {
+            public void run() {
+                evictShops();
+            }
+        }.runTaskTimer(plugin, EVICT_INTERVAL, EVICT_INTERVAL);
+    }
+
+    static void stopCache() {
+        if (evictTask != null) evictTask.cancel();
+        evictTask = null;
+    }
+
+    private static void scheduleEviction() {
+        if (evictScheduled || evictTask == null) return;
+        evictScheduled = true;
+        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+            public void run() {
+                evictShops();
+            }
+        });
+    }
+
+    // saves and unloads idle shops, and the least recently used ones over the size limit; shops in preloaded worlds,
+    // shops in use and shops in a loading chunk stay
+    static void evictShops() {
+        evictScheduled = false;
+        if (touched != null) return; // a preload is publishing shops, it expects the ones it skips to stay
+        cache.evict(new ShopCache.Evictor() {
+            public boolean evict(ShopLocation loc, Shop shop) {
+                ChunkKey chunk = ChunkKey.of(loc);
+                if (isPreloaded(loc.getWorld()) || loadingChunks.containsKey(chunk) || shop.isInUse()) return false;
+                if (shop.hasChanges()) ShopRepository.storeNow(shop);
+                drop(loc);
+                // the chunk no longer has all its shops in memory
+                setScanned(chunk, false);
+                return true;
+            }
+        });
+    }
+
+    static void beginPreload() {
+        touched = new HashSet<>();
+    }
+
+    // main thread only; worlds is null for all worlds, and shops touched during the preload are newer in memory
+    static void finishPreload(Map<ShopLocation, ShopSnapshot> shops, Set<String> worlds) {
+        for (Map.Entry<ShopLocation, ShopSnapshot> e : shops.entrySet()) {
+            if (touched.contains(e.getKey()) || cache.contains(e.getKey())) continue;
+            // the chest inventory is attached the first time the shop is looked up
+            put(e.getKey(), fromSnapshot(e.getValue(), null));
         }
+        touched = null;
+        if (worlds == null) {
+            preloadedAll = true;
+        } else {
+            preloadedWorlds.addAll(worlds);
+        }
+    }
+
+    static void abortPreload() {
+        touched = null;
     }
 
     // simpleauthority start
@@ -109,24 +400,30 @@ public class Shop implements InventoryHolder {
         Inventory inventory = Bukkit.createInventory(this, sourceInv.getSize());
         inventory.setContents(sourceInv.getStorageContents());
         Shop shop = new Shop(newLocation, inventory, owner, name, admin);
-        shop.deals = new ArrayList<>(deals);
-        shop.editor = new ShopEditor(shop);
+        for (Deal d : deals) {
+            shop.addDeal(d.duplicate());
+        }
         shop.refreshView();
         return shop;
     }
     // simpleauthority end
 
-    public void open(Player player) {
-        player.openInventory(viewInv);
+    public void open(Player player, Plugin plugin) {
+        opener = plugin;
+        openPage(player, 0);
     }
 
-    public void edit(Player player) {
-        if (editor == null) editor = new ShopEditor(this);
+    private void openPage(Player player, int index) {
+        player.openInventory(page(index).inv);
+    }
+
+    public void edit(Player player, Plugin plugin) {
+        if (editor == null) editor = new ShopEditor(this, plugin);
         player.openInventory(editor.viewInv);
     }
 
     public Inventory getInventory() {
-        return viewInv;
+        return page(0).inv;
     }
 
     public String getName() {
@@ -135,7 +432,9 @@ public class Shop implements InventoryHolder {
 
     public void setName(String name) {
         this.name = name;
-        viewInv = Bukkit.createInventory(this, 27, name);
+        dirty = true;
+        markChanged();
+        rebuildPages(); // the title is fixed when a page is built
         refreshView();
     }
 
@@ -149,10 +448,52 @@ public class Shop implements InventoryHolder {
 
     public void setAdmin(boolean admin) {
         this.admin = admin;
+        dirty = true;
+        markChanged();
         refreshEditor();
         refreshView();
     }
 
+    public void addDeal(Deal deal) {
+        deal.setShop(this);
+        deals.add(deal);
+        markChanged();
+    }
+
+    public void removeDeal(Deal deal) {
+        if (!deals.remove(deal)) return;
+        deal.setShop(null);
+        if (deal.getId() != 0) removedDeals.add(deal.getId());
+        markChanged();
+    }
+
+    // called by every setter of persistent state
+    void markChanged() {
+        changedShops.add(this);
+    }
+
+    boolean hasChanges() {
+        return changedShops.contains(this);
+    }
+
+    // whether a player has the shop or its editor open
+    boolean isInUse() {
+        for (Page page : pages) {
+            if (page != null && !page.inv.getViewers().isEmpty()) return true;
+        }
+        return editor != null && !editor.viewInv.getViewers().isEmpty();
+    }
+
+    // after a snapshot of the shop has been queued for saving
+    void markClean() {
+        changedShops.remove(this);
+        dirty = false;
+        removedDeals.clear();
+        for (Deal d : deals) {
+            d.setDirty(false);
+        }
+    }
+
     public void setLocation(ShopLocation location) {
         this.location = location;
     }
@@ -165,83 +506,243 @@ public class Shop implements InventoryHolder {
         if (editor != null) editor.refreshView();
     }
 
+    // recounts the chest; call after the chest or the deals changed other than by a trade
     public void refreshView() {
-        dealMap = new HashMap<>();
-        refreshDeals();
-        viewInv.clear();
-        int i = 0;
+        stockStale = true;
+        contents.invalidate();
+        if (sourceInv != null) {
+            for (Deal deal : deals) {
+                count(deal);
+            }
+        }
+        listed.clear();
+        positions.clear();
         for (Deal deal : deals) {
-            if (deal.getBuyPrice() == null && deal.getSellPrice() == null) continue;
-            List<String> lore = deal.toLore(admin);
-            ItemStack view = deal.getItem().clone();
-            ItemMeta meta = view.getItemMeta();
-            meta.setLore(lore);
-            view.setItemMeta(meta);
-            dealMap.put(i, deal);
-            viewInv.setItem(i, view);
-            i++;
+            if (!deal.hasBuyPrice() && !deal.hasSellPrice()) continue;
+            positions.put(deal, listed.size());
+            listed.add(deal);
+        }
+        boolean paged = pageCount() > 1;
+        if (paged != this.paged) {
+            this.paged = paged;
+            rebuildPages(); // the pages change size
+        }
+        // forget pages past the end that nobody is looking at
+        for (int i = pages.size() - 1; i >= pageCount(); i--) {
+            Page page = pages.get(i);
+            if (page != null && !page.inv.getViewers().isEmpty()) break;
+            pages.remove(i);
+        }
+        for (Page page : pages) {
+            if (page != null) render(page);
         }
     }
 
+    // updates the counts after a trade and redraws the deals that changed on open pages
     private void refreshDeals() {
+        if (sourceInv == null) return;
         for (Deal deal : deals) {
-            if (deal.getBuyPrice() != null) {
-                deal.setAvailable(countItems(sourceInv, deal.getItem()));
+            if (!count(deal)) continue;
+            Integer position = positions.get(deal);
+            if (position == null || position / PAGE_SIZE >= pages.size()) continue;
+            Page page = pages.get(position / PAGE_SIZE);
+            if (page == null) continue;
+            if (page.inv.getViewers().isEmpty()) {
+                page.stale = true;
             } else {
-                deal.setAvailable(0);
+                render(page, position % PAGE_SIZE, deal);
             }
-            if (deal.getSellPrice() != null) {
-                int currency = countItems(sourceInv, deal.getSellPrice());
-                deal.setBuying(deal.getItem().getAmount() * currency / deal.getSellPrice().getAmount());
-            } else {
-                deal.setBuying(0);
+        }
+    }
+
+    // drops the pages so they are built again, and moves whoever had one open to the new page with the same index
+    private void rebuildPages() {
+        final Map<Player, Integer> viewers = new HashMap<>();
+        for (Page page : pages) {
+            if (page == null) continue;
+            for (HumanEntity viewer : page.inv.getViewers()) {
+                if (viewer instanceof Player) viewers.put((Player) viewer, page.index);
             }
-            int i = -1;
-            for (Map.Entry<Integer, Deal> e : dealMap.entrySet()) {
-                if (e.getValue() == deal) {
-                    i = e.getKey();
-                    break;
+        }
+        pages.clear();
+        if (viewers.isEmpty() || opener == null) return;
+        // not from inside the inventory event that got us here
+        new BukkitRunnable() {
+            public void run() {
+                for (Map.Entry<Player, Integer> e : viewers.entrySet()) {
+                    Player player = e.getKey();
+                    Inventory top = player.getOpenInventory().getTopInventory();
+                    // still looking at the old page
+                    if (player.isOnline() && top.getHolder() == Shop.this && pageOf(top) == null) {
+                        openPage(player, Math.min(e.getValue(), pageCount() - 1));
+                    }
                 }
             }
-            if (i != -1) {
-                ItemStack view = viewInv.getItem(i);
-                ItemMeta meta = view.getItemMeta();
-                meta.setLore(deal.toLore(admin));
-                view.setItemMeta(meta);
+        }.runTask(opener);
+    }
+
+    private int pageCount() {
+        return Math.max(1, (listed.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    // builds the page or brings it up to date as needed
+    private Page page(int index) {
+        while (pages.size() <= index) {
+            pages.add(null);
+        }
+        Page page = pages.get(index);
+        if (page == null) {
+            page = new Page(index, Bukkit.createInventory(this, paged ? PAGE_SIZE + 9 : PAGE_SIZE, name));
+            pages.set(index, page);
+            page.stale = true;
+        }
+        if (page.stale) {
+            page.stale = false;
+            draw(page);
+        }
+        return page;
+    }
+
+    private void render(Page page) {
+        if (page.inv.getViewers().isEmpty()) {
+            page.stale = true;
+        } else {
+            draw(page);
+        }
+    }
+
+    // sends only the slots that changed
+    private void draw(Page page) {
+        int first = page.index * PAGE_SIZE;
+        for (int slot = 0; slot < PAGE_SIZE; slot++) {
+            if (first + slot < listed.size()) {
+                render(page, slot, listed.get(first + slot));
+            } else if (page.shown[slot] != null) {
+                page.shown[slot] = null;
+                page.inv.setItem(slot, null);
             }
         }
+        if (paged && page.pageCount != pageCount()) {
+            page.pageCount = pageCount();
+            page.inv.setItem(PREVIOUS_PAGE, page.index > 0 ? button(Material.ARROW, I18n.s("shop.previous")) : null);
+            page.inv.setItem(PAGE_INFO, button(Material.PAPER, I18n.s("shop.page", page.index + 1, page.pageCount)));
+            page.inv.setItem(NEXT_PAGE, page.index + 1 < page.pageCount
+                    ? button(Material.ARROW, I18n.s("shop.next")) : null);
+        }
+    }
+
+    static ItemStack button(Material type, String title) {
+        ItemStack it = new ItemStack(type, 1);
+        ItemMeta meta = it.getItemMeta();
+        meta.setDisplayName(title);
+        it.setItemMeta(meta);
+        return it;
+    }
+
+    // returns whether the deal's counts changed
+    private boolean count(Deal deal) {
+        if (stockStale) countStock();
+        int available = deal.hasBuyPrice() ? stockOf(deal.getItemTemplate()) : 0;
+        int buying = 0;
+        if (deal.hasSellPrice()) {
+            int currency = stockOf(deal.getSellTemplate());
+            buying = deal.getAmount() * currency / deal.getSellAmount();
+        }
+        if (available == deal.getAvailable() && buying == deal.getBuying()) return false;
+        deal.setAvailable(available);
+        deal.setBuying(buying);
+        return true;
+    }
+
+    // skipped if the slot already shows exactly this deal
+    private void render(Page page, int slot, Deal deal) {
+        List<String> lore = deal.toLore(admin);
+        Shown old = page.shown[slot];
+        if (old != null && old.deal == deal && old.item == deal.getItemTemplate() && old.amount == deal.getAmount()
+                && old.lore.equals(lore)) {
+            return;
+        }
+        ItemStack view = deal.getItem();
+        ItemMeta meta = view.getItemMeta();
+        meta.setLore(lore);
+        view.setItemMeta(meta);
+        page.inv.setItem(slot, view);
+        page.shown[slot] = new Shown(deal, deal.getItemTemplate(), deal.getAmount(), lore);
+    }
+
+    private void countStock() {
+        stock.clear();
+        for (Deal deal : deals) {
+            if (deal.hasBuyPrice()) countStock(deal.getItemTemplate());
+            if (deal.hasSellPrice()) countStock(deal.getSellTemplate());
+        }
+        stockStale = false;
     }
 
-    private int countItems(Inventory inv, ItemStack it) {
-        int count = 0;
-        for (ItemStack i : inv.getContents()) {
-            if (i != null && i.isSimilar(it)) count += i.getAmount();
+    private void countStock(ItemStack template) {
+        if (!stock.containsKey(template)) stock.put(template, new int[] {contents.count(template)});
+    }
+
+    private int stockOf(ItemStack template) {
+        int[] count = stock.get(template);
+        if (count == null) {
+            // a deal was changed without refreshing the view
+            countStock();
+            count = stock.get(template);
         }
-        return count;
+        return count[0];
+    }
+
+    // keeps the stock counts after a trade moved items in and out of the chest
+    private void traded(ItemStack in, int inAmount, ItemStack out, int outAmount) {
+        if (stockStale) return;
+        int[] count = stock.get(in);
+        if (count != null) count[0] += inAmount;
+        count = stock.get(out);
+        if (count != null) count[0] -= outAmount;
+    }
+
+    // for changes the shop doesn't see, such as hoppers
+    public void invalidateStock() {
+        stockStale = true;
+        contents.invalidate();
     }
 
     public void onInventoryClick(InventoryClickEvent event) {
         if (event.getRawSlot() >= 0 && event.getRawSlot() < event.getInventory().getSize()) {
             // click in shop
+            Page page = pageOf(event.getInventory());
+            int slot = event.getRawSlot();
+            if (slot >= PAGE_SIZE) {
+                // click in navigation row
+                event.setCancelled(true);
+                if (page == null || !(event.getWhoClicked() instanceof Player)) return;
+                if (slot == PREVIOUS_PAGE && page.index > 0) {
+                    openPage((Player) event.getWhoClicked(), page.index - 1);
+                } else if (slot == NEXT_PAGE && page.index + 1 < pageCount()) {
+                    openPage((Player) event.getWhoClicked(), page.index + 1);
+                }
+                return;
+            }
+            Shown shown = page == null ? null : page.shown[slot];
+            Deal deal = shown == null ? null : shown.deal;
             switch (event.getAction()) {
                 case SWAP_WITH_CURSOR:
                     event.setCancelled(true);
-                    Deal deal = dealMap.get(event.getSlot());
                     if (deal != null) {
-                        if (deal.getBuyPrice() != null && deal.getBuyPrice().isSimilar(event.getCursor())) {
+                        if (deal.hasBuyPrice() && deal.getBuyTemplate().isSimilar(event.getCursor())) {
                             buy(event.getWhoClicked(), deal, event.getView());
-                        } else if (deal.getSellPrice() != null && deal.getItem().isSimilar(event.getCursor())) {
+                        } else if (deal.hasSellPrice() && deal.getItemTemplate().isSimilar(event.getCursor())) {
                             sell(event.getWhoClicked(), deal, event.getView());
                         }
                     }
                     break;
                 case MOVE_TO_OTHER_INVENTORY:
                     event.setCancelled(true);
-                    deal = dealMap.get(event.getSlot());
                     if (deal != null) {
-                        if (deal.getBuyPrice() != null && deal.getBuyPrice().isSimilar(event.getCursor())) {
+                        if (deal.hasBuyPrice() && deal.getBuyTemplate().isSimilar(event.getCursor())) {
                             buyAll(event.getWhoClicked(), deal, event.getView());
-                        } else if (deal.getSellPrice() != null && deal.getItem().isSimilar(event.getCursor())) {
+                        } else if (deal.hasSellPrice() && deal.getItemTemplate().isSimilar(event.getCursor())) {
                             sellAll(event.getWhoClicked(), deal, event.getView());
                         }
                     }
@@ -261,47 +762,81 @@ public class Shop implements InventoryHolder {
         }
     }
 
-    private void sellAll(HumanEntity whoClicked, Deal deal, InventoryView view) {
+    // sells as much of the cursor as the chest can pay for and hold at once, ending up like repeated sells
+    void sellAll(HumanEntity whoClicked, Deal deal, InventoryView view) {
+        if (!(whoClicked instanceof Player)) return;
+        Player p = (Player) whoClicked;
         ItemStack cursor = view.getCursor();
-        while (deal.getItem().isSimilar(cursor) && deal.getItem().getAmount() <= cursor.getAmount()) {
-            if (!sell(whoClicked, deal, view)) break;
+        if (!deal.getItemTemplate().isSimilar(cursor)) return;
+        int units = cursor.getAmount() / deal.getAmount();
+        if (!admin) {
+            units = fit(units, deal.getItemTemplate(), deal.getAmount(), deal.getSellTemplate(), deal.getSellAmount());
         }
+        if (units == 0) {
+            // let a single trade tell the player why not
+            sell(whoClicked, deal, view);
+            return;
+        }
+        int items = units * deal.getAmount();
+        int currency = units * deal.getSellAmount();
+        if (!admin) {
+            // taking out first makes room for everything at once; fit made sure single trades would have fit too
+            if (!exchange(ItemTemplates.stack(deal.getItemTemplate(), items),
+                    ItemTemplates.stack(deal.getSellTemplate(), currency), true)) {
+                Chat.e(p, I18n.s("sell.room"));
+                return;
+            }
+            contents.update(deal.getItemTemplate().getType(), deal.getSellTemplate().getType());
+            traded(deal.getItemTemplate(), items, deal.getSellTemplate(), currency);
+        }
+        cursor.setAmount(cursor.getAmount() - items);
+        if (cursor.getAmount() == 0) view.setCursor(null);
+        Map<Integer, ItemStack> overflow = whoClicked.getInventory().addItem(
+                ItemTemplates.stack(deal.getSellTemplate(), currency));
+        for (ItemStack it : overflow.values()) {
+            if (cursor.getAmount() == 0) {
+                int onCursor = Math.min(it.getAmount(), it.getMaxStackSize());
+                view.setCursor(ItemTemplates.stack(it, onCursor));
+                cursor = view.getCursor();
+                it.setAmount(it.getAmount() - onCursor);
+            }
+            drop(whoClicked, it);
+        }
+        TradeLedger.record(TradeLedger.SELL, location, p.getUniqueId(), deal.getItemTemplate(),
+                units * deal.getAmount(), deal.getSellTemplate(), units * deal.getSellAmount());
+        refreshDeals();
     }
 
 
-    private boolean sell(HumanEntity whoClicked, Deal deal, InventoryView view) {
+    boolean sell(HumanEntity whoClicked, Deal deal, InventoryView view) {
         if (!(whoClicked instanceof Player)) return false;
         Player p = (Player) whoClicked;
         ItemStack cursor = view.getCursor();
-        if (deal.getItem().isSimilar(cursor)) {
-            if (deal.getItem().getAmount() > cursor.getAmount()) {
+        if (deal.getItemTemplate().isSimilar(cursor)) {
+            if (deal.getAmount() > cursor.getAmount()) {
                 Chat.e(p, I18n.s("sell.amount"));
                 return false;
             } else {
-                if (!admin && !sourceInv.containsAtLeast(deal.getSellPrice(), deal.getSellPrice().getAmount())) {
+                if (!admin && contents.count(deal.getSellTemplate()) < deal.getSellAmount()) {
                     Chat.e(p, I18n.s("sell.stock"));
                     return false;
                 } else {
-                    // try depositing item
                     Map<Integer, ItemStack> overflow;
                     if (!admin) {
-                        overflow = sourceInv.addItem(deal.getItem().clone());
-                        if (!overflow.isEmpty()) {
+                        if (contents.room(deal.getItemTemplate(), null, 0) < deal.getAmount()) {
                             Chat.e(p, I18n.s("sell.room"));
-                            int numOverflowed = 0;
-                            for (ItemStack it : overflow.values()) {
-                                if (it.isSimilar(deal.getItem())) numOverflowed += it.getAmount();
-                            }
-                            ItemStack toRemove = deal.getItem().clone();
-                            toRemove.setAmount(deal.getItem().getAmount() - numOverflowed);
-                            sourceInv.removeItem(toRemove);
                             return false;
                         }
-                        sourceInv.removeItem(deal.getSellPrice());
+                        if (!exchange(deal.getItem(), deal.getSellPrice(), false)) {
+                            Chat.e(p, I18n.s("sell.room"));
+                            return false;
+                        }
+                        contents.update(deal.getItemTemplate().getType(), deal.getSellTemplate().getType());
+                        traded(deal.getItemTemplate(), deal.getAmount(), deal.getSellTemplate(), deal.getSellAmount());
                     }
-                    cursor.setAmount(cursor.getAmount() - deal.getItem().getAmount());
+                    cursor.setAmount(cursor.getAmount() - deal.getAmount());
                     if (cursor.getAmount() == 0) view.setCursor(null);
-                    overflow = whoClicked.getInventory().addItem(deal.getSellPrice().clone());
+                    overflow = whoClicked.getInventory().addItem(deal.getSellPrice());
                     for (ItemStack it : overflow.values()) {
                         if (cursor == null || cursor.getAmount() == 0) {
                             cursor = it;
@@ -310,6 +845,7 @@ public class Shop implements InventoryHolder {
                             whoClicked.getWorld().dropItemNaturally(whoClicked.getLocation(), it);
                         }
                     }
+                    TradeLedger.record(TradeLedger.SELL, location, p.getUniqueId(), deal.getItem(), deal.getSellPrice());
                     refreshDeals();
                     return true;
                 }
@@ -319,52 +855,128 @@ public class Shop implements InventoryHolder {
         }
     }
 
-    private void buyAll(HumanEntity whoClicked, Deal deal, InventoryView view) {
+    // buys as much as the cursor pays for and the chest has and can hold at once, ending up like repeated buys
+    void buyAll(HumanEntity whoClicked, Deal deal, InventoryView view) {
+        if (!(whoClicked instanceof Player)) return;
+        Player p = (Player) whoClicked;
         ItemStack cursor = view.getCursor();
-        while (deal.getBuyPrice().isSimilar(cursor) && deal.getBuyPrice().getAmount() <= cursor.getAmount()) {
-            if (!buy(whoClicked, deal, view)) break;
+        if (!deal.getBuyTemplate().isSimilar(cursor)) return;
+        int units = cursor.getAmount() / deal.getBuyAmount();
+        if (!admin) {
+            units = fit(units, deal.getBuyTemplate(), deal.getBuyAmount(), deal.getItemTemplate(), deal.getAmount());
+        }
+        if (units == 0) {
+            // let a single trade tell the player why not
+            buy(whoClicked, deal, view);
+            return;
         }
+        int items = units * deal.getAmount();
+        int currency = units * deal.getBuyAmount();
+        if (!admin) {
+            if (!exchange(ItemTemplates.stack(deal.getBuyTemplate(), currency),
+                    ItemTemplates.stack(deal.getItemTemplate(), items), true)) {
+                Chat.e(p, I18n.s("buy.room"));
+                return;
+            }
+            contents.update(deal.getBuyTemplate().getType(), deal.getItemTemplate().getType());
+            traded(deal.getBuyTemplate(), currency, deal.getItemTemplate(), items);
+        }
+        cursor.setAmount(cursor.getAmount() - currency);
+        if (cursor.getAmount() == 0) {
+            // the last unit goes onto the emptied cursor
+            view.setCursor(deal.getItem());
+            items -= deal.getAmount();
+        }
+        if (items > 0) {
+            Map<Integer, ItemStack> overflow = whoClicked.getInventory().addItem(
+                    ItemTemplates.stack(deal.getItemTemplate(), items));
+            for (ItemStack it : overflow.values()) {
+                drop(whoClicked, it);
+            }
+        }
+        TradeLedger.record(TradeLedger.BUY, location, p.getUniqueId(), deal.getItemTemplate(),
+                units * deal.getAmount(), deal.getBuyTemplate(), units * deal.getBuyAmount());
+        refreshDeals();
     }
 
-    private boolean buy(HumanEntity whoClicked, Deal deal, InventoryView view) {
+    // how many of up to units trades the chest can make, each putting inAmount in and then taking outAmount out
+    private int fit(int units, ItemStack in, int inAmount, ItemStack out, int outAmount) {
+        units = Math.min(units, contents.count(out) / outAmount);
+        // trade j needs room for j * inAmount once j - 1 trades took their items out. That room only grows as
+        // items are taken out, so with the room known, every trade up to the first that outgrows it fits too.
+        int j = 1;
+        while (j <= units) {
+            long room = contents.room(in, out, (j - 1) * outAmount);
+            if ((long) j * inAmount > room) return j - 1;
+            j = (int) Math.min(units + 1L, room / inAmount + 1);
+        }
+        return units;
+    }
+
+    // puts a trade's items in the chest and takes the other side out. The room checks go by the index, so if the
+    // chest can't take the items after all, the trade is undone and the index rebuilt.
+    private boolean exchange(ItemStack in, ItemStack out, boolean outFirst) {
+        if (outFirst) sourceInv.removeItem(out.clone());
+        int amount = in.getAmount();
+        Map<Integer, ItemStack> overflow = sourceInv.addItem(in.clone());
+        if (!overflow.isEmpty()) {
+            int left = 0;
+            for (ItemStack it : overflow.values()) {
+                left += it.getAmount();
+            }
+            if (left < amount) sourceInv.removeItem(ItemTemplates.stack(in, amount - left));
+            if (outFirst) sourceInv.addItem(out);
+            contents.invalidate();
+            return false;
+        }
+        if (!outFirst) sourceInv.removeItem(out);
+        return true;
+    }
+
+    private static void drop(HumanEntity player, ItemStack it) {
+        // overflow of a bulk trade may be larger than a stack
+        int max = it.getMaxStackSize();
+        for (int left = it.getAmount(); left > 0; left -= max) {
+            player.getWorld().dropItemNaturally(player.getLocation(), ItemTemplates.stack(it, Math.min(left, max)));
+        }
+    }
+
+    boolean buy(HumanEntity whoClicked, Deal deal, InventoryView view) {
         if (!(whoClicked instanceof Player)) return false;
         Player p = (Player) whoClicked;
         ItemStack cursor = view.getCursor();
-        if (deal.getBuyPrice().isSimilar(cursor)) {
-            if (deal.getBuyPrice().getAmount() > cursor.getAmount()) {
+        if (deal.getBuyTemplate().isSimilar(cursor)) {
+            if (deal.getBuyAmount() > cursor.getAmount()) {
                 Chat.e(p, I18n.s("buy.enough"));
                 return false;
             } else {
-                if (!admin && !sourceInv.containsAtLeast(deal.getItem(), deal.getItem().getAmount())) {
+                if (!admin && contents.count(deal.getItemTemplate()) < deal.getAmount()) {
                     Chat.e(p, I18n.s("buy.stock"));
                     return false;
                 } else {
-                    // try depositing currency
                     Map<Integer, ItemStack> overflow;
                     if (!admin) {
-                        overflow = sourceInv.addItem(deal.getBuyPrice().clone());
-                        if (!overflow.isEmpty()) {
+                        if (contents.room(deal.getBuyTemplate(), null, 0) < deal.getBuyAmount()) {
                             Chat.e(p, I18n.s("buy.room"));
-                            int numOverflowed = 0;
-                            for (ItemStack it : overflow.values()) {
-                                if (it.isSimilar(deal.getBuyPrice())) numOverflowed += it.getAmount();
-                            }
-                            ItemStack toRemove = deal.getBuyPrice().clone();
-                            toRemove.setAmount(deal.getBuyPrice().getAmount() - numOverflowed);
-                            sourceInv.removeItem(toRemove);
                             return false;
                         }
-                        sourceInv.removeItem(deal.getItem());
+                        if (!exchange(deal.getBuyPrice(), deal.getItem(), false)) {
+                            Chat.e(p, I18n.s("buy.room"));
+                            return false;
+                        }
+                        contents.update(deal.getBuyTemplate().getType(), deal.getItemTemplate().getType());
+                        traded(deal.getBuyTemplate(), deal.getBuyAmount(), deal.getItemTemplate(), deal.getAmount());
                     }
-                    cursor.setAmount(cursor.getAmount() - deal.getBuyPrice().getAmount());
+                    cursor.setAmount(cursor.getAmount() - deal.getBuyAmount());
                     if (cursor.getAmount() == 0) {
-                        view.setCursor(deal.getItem().clone());
+                        view.setCursor(deal.getItem());
                     } else {
-                        overflow = whoClicked.getInventory().addItem(deal.getItem().clone());
+                        overflow = whoClicked.getInventory().addItem(deal.getItem());
                         for (ItemStack it : overflow.values()) {
                             whoClicked.getWorld().dropItemNaturally(whoClicked.getLocation(), it);
                         }
                     }
+                    TradeLedger.record(TradeLedger.BUY, location, p.getUniqueId(), deal.getItem(), deal.getBuyPrice());
                     refreshDeals();
                     return true;
                 }
@@ -374,6 +986,14 @@ public class Shop implements InventoryHolder {
         }
     }
 
+    // null for a page that was replaced while someone had it open
+    private Page pageOf(Inventory inv) {
+        for (Page page : pages) {
+            if (page != null && page.inv.equals(inv)) return page;
+        }
+        return null;
+    }
+
     public void onInventoryDrag(InventoryDragEvent event) {
         boolean allow = true;
         for (Integer i : event.getRawSlots()) {
@@ -386,6 +1006,11 @@ public class Shop implements InventoryHolder {
     }
 
     public void updateSourceInv(Inventory inv) {
+        boolean attach = sourceInv == null;
+        // the chest became a double chest or lost a half
+        if (!attach && inv.getSize() != sourceInv.getSize()) stockStale = true;
         this.sourceInv = inv;
+        contents.attach(inv);
+        if (attach) refreshView();
     }
 }
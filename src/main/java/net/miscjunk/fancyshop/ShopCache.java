@@ -0,0 +1,220 @@
+package net.miscjunk.fancyshop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The shops in memory, bounded by size and idle time, and a smaller cache of locations that aren't shops, which expire
+// so a shop created behind the server's back is eventually found. Lookups go through BlockMaps so the event handlers
+// don't allocate. Everything but peek and contains is main thread only.
+class ShopCache {
+    interface Evictor {
+        // saves and drops the shop, or returns false if it has to stay
+        boolean evict(ShopLocation location, Shop shop);
+    }
+
+    private static class Entry {
+        final Shop shop;
+        volatile long lastAccess;
+
+        Entry(Shop shop, long now) {
+            this.shop = shop;
+            this.lastAccess = now;
+        }
+    }
+
+    private static class Miss {
+        long expiry;
+        int slot; // position in the ring
+    }
+
+    private final Map<ShopLocation, Entry> shops = new ConcurrentHashMap<>();
+    private final BlockMap<Entry> index = new BlockMap<>();
+    private final BlockMap<Miss> misses = new BlockMap<>();
+    // the misses in the order they were added; when the ring is full the oldest is overwritten
+    private int[] ringWorlds = new int[0];
+    private long[] ringKeys = new long[0];
+    private int ringNext;
+    private int maxSize;
+    private long idleMillis;
+    private long missMillis = 60000;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong missHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // 0 for no size or idle limit
+    void configure(int maxSize, long idleMillis, int maxMisses, long missMillis) {
+        this.maxSize = maxSize;
+        this.idleMillis = idleMillis;
+        this.missMillis = missMillis;
+        if (maxMisses != ringKeys.length) {
+            misses.clear();
+            ringWorlds = new int[Math.max(0, maxMisses)];
+            ringKeys = new long[ringWorlds.length];
+            Arrays.fill(ringWorlds, -1);
+            ringNext = 0;
+        }
+    }
+
+    // counts as a use in the statistics
+    Shop get(ShopLocation location) {
+        return get(location.getWorld(), location.getX(), location.getY(), location.getZ());
+    }
+
+    Shop get(String world, int x, int y, int z) {
+        lookups.incrementAndGet();
+        Entry e = index.get(WorldIds.id(world), ShopLocation.pack(x, y, z));
+        if (e == null) return null;
+        hits.incrementAndGet();
+        e.lastAccess = System.currentTimeMillis();
+        return e.shop;
+    }
+
+    // doesn't count as a use
+    Shop peek(ShopLocation location) {
+        Entry e = shops.get(location);
+        return e == null ? null : e.shop;
+    }
+
+    boolean contains(ShopLocation location) {
+        return shops.containsKey(location);
+    }
+
+    // returns the shop cached at the location before, if any
+    Shop put(ShopLocation location, Shop shop) {
+        removeMiss(location);
+        Entry e = new Entry(shop, System.currentTimeMillis());
+        index.put(WorldIds.id(location.getWorld()), location.pack(), e);
+        Entry old = shops.put(location, e);
+        return old == null ? null : old.shop;
+    }
+
+    Shop remove(ShopLocation location) {
+        index.remove(WorldIds.id(location.getWorld()), location.pack());
+        Entry old = shops.remove(location);
+        return old == null ? null : old.shop;
+    }
+
+    int size() {
+        return shops.size();
+    }
+
+    boolean isFull() {
+        int max = maxSize;
+        return max > 0 && shops.size() > max;
+    }
+
+    // whether the location was recently found not to be a shop
+    boolean isMiss(ShopLocation location) {
+        return isMiss(location.getWorld(), location.getX(), location.getY(), location.getZ());
+    }
+
+    boolean isMiss(String world, int x, int y, int z) {
+        int id = WorldIds.id(world);
+        long key = ShopLocation.pack(x, y, z);
+        Miss miss = misses.get(id, key);
+        if (miss == null) return false;
+        if (miss.expiry < System.currentTimeMillis()) {
+            dropMiss(id, key, miss);
+            return false;
+        }
+        missHits.incrementAndGet();
+        return true;
+    }
+
+    void putMiss(ShopLocation location) {
+        if (ringKeys.length == 0) return;
+        int id = WorldIds.id(location.getWorld());
+        long key = location.pack();
+        Miss miss = misses.get(id, key);
+        if (miss == null) {
+            miss = new Miss();
+            misses.put(id, key, miss);
+        } else {
+            // the old ring slot is left behind and ignored when it is overwritten
+            ringWorlds[miss.slot] = -1;
+        }
+        miss.expiry = System.currentTimeMillis() + missMillis;
+        int slot = ringNext;
+        ringNext = (ringNext + 1) % ringKeys.length;
+        if (ringWorlds[slot] != -1) {
+            Miss oldest = misses.get(ringWorlds[slot], ringKeys[slot]);
+            if (oldest != null) dropMiss(ringWorlds[slot], ringKeys[slot], oldest);
+        }
+        ringWorlds[slot] = id;
+        ringKeys[slot] = key;
+        miss.slot = slot;
+    }
+
+    void removeMiss(ShopLocation location) {
+        int id = WorldIds.id(location.getWorld());
+        long key = location.pack();
+        Miss miss = misses.get(id, key);
+        if (miss != null) dropMiss(id, key, miss);
+    }
+
+    private void dropMiss(int world, long key, Miss miss) {
+        misses.remove(world, key);
+        ringWorlds[miss.slot] = -1;
+    }
+
+    int missCount() {
+        return misses.size();
+    }
+
+    // idle shops, then the least recently used ones down to the size limit, and expired misses; main thread only
+    int evict(Evictor evictor) {
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < ringKeys.length; slot++) {
+            if (ringWorlds[slot] == -1) continue;
+            Miss miss = misses.get(ringWorlds[slot], ringKeys[slot]);
+            if (miss != null && miss.expiry < now) dropMiss(ringWorlds[slot], ringKeys[slot], miss);
+        }
+        int evicted = 0;
+        long idle = idleMillis;
+        List<Map.Entry<ShopLocation, Entry>> candidates = new ArrayList<>();
+        for (Map.Entry<ShopLocation, Entry> e : shops.entrySet()) {
+            if (idle > 0 && now - e.getValue().lastAccess > idle) {
+                if (evictor.evict(e.getKey(), e.getValue().shop)) evicted++;
+            } else {
+                candidates.add(e);
+            }
+        }
+        if (isFull()) {
+            Collections.sort(candidates, new Comparator<Map.Entry<ShopLocation, Entry>>() {
+                public int compare(Map.Entry<ShopLocation, Entry> a, Map.Entry<ShopLocation, Entry> b) {
+                    return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+                }
+            });
+            for (Map.Entry<ShopLocation, Entry> e : candidates) {
+                if (!isFull()) break;
+                if (evictor.evict(e.getKey(), e.getValue().shop)) evicted++;
+            }
+        }
+        evictions.addAndGet(evicted);
+        return evicted;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return lookups.get() - hits.get();
+    }
+
+    long getMissHits() {
+        return missHits.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+}
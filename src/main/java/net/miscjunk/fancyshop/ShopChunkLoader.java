@@ -0,0 +1,121 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+// Keeps shops resident only while their chunk is loaded. A loading chunk's shops are read in the background with one
+// query and handed to Shop on the main thread; an unloading chunk's are saved and dropped. Preloaded worlds stay
+// resident.
+public class ShopChunkLoader implements Runnable {
+    private static final int BATCH_SIZE = 64;
+
+    static class Request {
+        final ChunkKey chunk;
+        final Map<ShopLocation, ShopWriter.Write> pending; // uncommitted writes when the load was requested
+        final Set<ShopLocation> touched = new HashSet<>(); // main thread only
+        volatile boolean cancelled;
+        Map<ShopLocation, ShopSnapshot> result; // null if the load failed
+
+        Request(ChunkKey chunk, Map<ShopLocation, ShopWriter.Write> pending) {
+            this.chunk = chunk;
+            this.pending = pending;
+        }
+    }
+
+    private static ShopChunkLoader instance;
+
+    private final FancyShop plugin;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private volatile boolean running;
+    private Thread thread;
+
+    private ShopChunkLoader(FancyShop plugin) {
+        this.plugin = plugin;
+    }
+
+    public static void start(FancyShop plugin) {
+        if (instance != null) throw new RuntimeException("ShopChunkLoader is already started");
+        instance = new ShopChunkLoader(plugin);
+        instance.running = true;
+        instance.thread = new Thread(instance, "FancyShop-ChunkLoader");
+        instance.thread.setDaemon(true);
+        instance.thread.start();
+        // chunks loaded before the plugin was enabled never fire a load event
+        for (World world : plugin.getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                chunkLoaded(chunk);
+            }
+        }
+    }
+
+    public static void stop() {
+        if (instance == null) return;
+        instance.running = false;
+        try {
+            instance.thread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        instance = null;
+    }
+
+    public static void chunkLoaded(Chunk chunk) {
+        if (instance == null) return;
+        ChunkKey key = ChunkKey.of(chunk);
+        // most chunks have no shops, and the index knows about every shop including the ones still queued for saving
+        if (!ShopRepository.getIndex().hasShopsIn(key)) {
+            Shop.emptyChunkLoaded(key);
+            return;
+        }
+        Request request = Shop.beginChunkLoad(key, ShopRepository.getWriter().getPendingIn(key));
+        if (request != null) instance.queue.add(request);
+    }
+
+    public static void chunkUnloaded(Chunk chunk) {
+        if (instance == null) return;
+        Shop.unloadChunk(ChunkKey.of(chunk));
+    }
+
+    public void run() {
+        while (running) {
+            Request first;
+            try {
+                first = queue.poll(250, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) continue;
+            // a moving player loads chunks in bursts, publish them together
+            final List<Request> batch = new ArrayList<>(BATCH_SIZE);
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            ShopStore store = ShopRepository.getStore();
+            for (Request request : batch) {
+                if (request.cancelled || store == null) continue;
+                try {
+                    request.result = store.loadChunk(request.chunk);
+                } catch (StoreException | RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Couldn't load shops in " + request.chunk, e);
+                }
+            }
+            new BukkitRunnable() {
+                public void run() {
+                    for (Request request : batch) {
+                        Shop.finishChunkLoad(request);
+                    }
+                }
+            }.runTask(plugin);
+        }
+    }
+}
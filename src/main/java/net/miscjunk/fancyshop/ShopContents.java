@@ -0,0 +1,154 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+// Which slots of a shop's chest hold which material, empty ones under AIR, so stock and room checks only look at stacks
+// that can match. Rebuilt when marked stale or when a slot doesn't hold what the index says. Main thread only.
+class ShopContents {
+    private static class Slots {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(slots, 0, grown, 0, size);
+                slots = grown;
+            }
+            slots[size++] = slot;
+        }
+    }
+
+    private final Map<Material, Slots> byType = new EnumMap<>(Material.class);
+    private Inventory inv;
+    private boolean stale = true;
+
+    // only a change of size, a chest becoming double or single, needs a rebuild
+    void attach(Inventory inv) {
+        if (this.inv == null || inv == null || inv.getSize() != this.inv.getSize()) stale = true;
+        this.inv = inv;
+    }
+
+    // for changes to the chest the shop doesn't make itself
+    void invalidate() {
+        stale = true;
+    }
+
+    int count(ItemStack template) {
+        if (stale) rebuild();
+        int count = countSlots(template);
+        if (count < 0) {
+            rebuild();
+            count = countSlots(template);
+        }
+        return count;
+    }
+
+    // how many of in the chest can take once removed of out (or null) have been taken from the first slots holding it,
+    // as removeItem does
+    long room(ItemStack in, ItemStack out, int removed) {
+        if (stale) rebuild();
+        int max = Math.min(in.getMaxStackSize(), inv.getMaxStackSize());
+        long room = (long) sizeOf(Material.AIR) * max;
+        Slots inSlots = byType.get(in.getType());
+        if (out != null && removed > 0) {
+            Slots outSlots = byType.get(out.getType());
+            int left = removed;
+            for (int i = 0; outSlots != null && i < outSlots.size; i++) {
+                ItemStack it = inv.getItem(outSlots.slots[i]);
+                if (it == null || it.getType() != out.getType()) {
+                    rebuild();
+                    return room(in, out, removed);
+                }
+                int amount = it.getAmount();
+                if (left > 0 && it.isSimilar(out)) {
+                    int taken = Math.min(left, amount);
+                    left -= taken;
+                    amount -= taken;
+                }
+                if (amount == 0) {
+                    room += max;
+                } else if (it.isSimilar(in)) {
+                    room += Math.max(0, max - amount);
+                }
+            }
+            if (outSlots == inSlots) return room; // same material, already counted
+        }
+        for (int i = 0; inSlots != null && i < inSlots.size; i++) {
+            ItemStack it = inv.getItem(inSlots.slots[i]);
+            if (it == null || it.getType() != in.getType()) {
+                rebuild();
+                return room(in, out, removed);
+            }
+            if (it.isSimilar(in)) room += Math.max(0, max - it.getAmount());
+        }
+        return room;
+    }
+
+    // re-reads the slots that held either material or nothing, after the shop moved items of those materials
+    void update(Material a, Material b) {
+        if (stale) return;
+        int[] slots = new int[sizeOf(a) + sizeOf(b) + sizeOf(Material.AIR)];
+        int n = 0;
+        n = take(a, slots, n);
+        if (b != a) n = take(b, slots, n);
+        n = take(Material.AIR, slots, n);
+        Arrays.sort(slots, 0, n);
+        for (int i = 0; i < n; i++) {
+            ItemStack it = inv.getItem(slots[i]);
+            Material type = it == null ? Material.AIR : it.getType();
+            if (type != a && type != b && type != Material.AIR) {
+                stale = true; // something else changed the chest
+                return;
+            }
+            slotsOf(type).add(slots[i]);
+        }
+    }
+
+    private void rebuild() {
+        byType.clear();
+        stale = false;
+        if (inv == null) return;
+        ItemStack[] contents = inv.getStorageContents();
+        for (int i = 0; i < contents.length; i++) {
+            slotsOf(contents[i] == null ? Material.AIR : contents[i].getType()).add(i);
+        }
+    }
+
+    // -1 if a slot no longer holds the material the index says
+    private int countSlots(ItemStack template) {
+        Slots s = byType.get(template.getType());
+        if (s == null) return 0;
+        int count = 0;
+        for (int i = 0; i < s.size; i++) {
+            ItemStack it = inv.getItem(s.slots[i]);
+            if (it == null || it.getType() != template.getType()) return -1;
+            if (it.isSimilar(template)) count += it.getAmount();
+        }
+        return count;
+    }
+
+    private int take(Material type, int[] into, int n) {
+        Slots s = byType.remove(type);
+        if (s == null) return n;
+        System.arraycopy(s.slots, 0, into, n, s.size);
+        return n + s.size;
+    }
+
+    private int sizeOf(Material type) {
+        Slots s = byType.get(type);
+        return s == null ? 0 : s.size;
+    }
+
+    private Slots slotsOf(Material type) {
+        Slots s = byType.get(type);
+        if (s == null) byType.put(type, s = new Slots());
+        return s;
+    }
+}
@@ -11,6 +11,7 @@ import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -19,8 +20,11 @@ import java.util.Map;
 
 public class ShopEditor implements InventoryHolder {
     Shop shop;
+    private final Plugin plugin;
     Inventory viewInv;
-    static final int LAST_DEAL = 26;
+    static final int LAST_DEAL = Shop.PAGE_SIZE - 1;
+    static final int PREVIOUS_PAGE = 27;
+    static final int NEXT_PAGE = 28;
     static final int PREVIEW = 32;
     static final int CHEST = 33;
     static final int BUY_SELL = 34;
@@ -31,14 +35,18 @@ public class ShopEditor implements InventoryHolder {
     ItemStack sellBtn;
     ItemStack removeBtn;
     ItemStack doneBtn;
+    ItemStack previousBtn;
+    ItemStack nextBtn;
 
     enum State {BUY, SELL, REMOVE}
 
     State state;
     Map<Integer, Deal> dealMap;
+    int page;
 
-    public ShopEditor(Shop shop) {
+    public ShopEditor(Shop shop, Plugin plugin) {
         this.shop = shop;
+        this.plugin = plugin;
         this.state = State.BUY;
         viewInv = Bukkit.createInventory(this, 36, I18n.s("edit.title"));
         previewBtn = new ItemStack(Material.GLASS, 1);
@@ -88,6 +96,9 @@ public class ShopEditor implements InventoryHolder {
         meta.setDisplayName(I18n.s("edit.buttons.done.title"));
         doneBtn.setItemMeta(meta);
 
+        previousBtn = Shop.button(Material.ARROW, I18n.s("shop.previous"));
+        nextBtn = Shop.button(Material.ARROW, I18n.s("shop.next"));
+
         changeState(State.BUY);
     }
 
@@ -95,12 +106,19 @@ public class ShopEditor implements InventoryHolder {
         changeState(state);
     }
 
+    // including one with room for a new deal unless the shop is full
+    private int pageCount() {
+        return Math.min(shop.deals.size(), Shop.MAX_DEALS - 1) / Shop.PAGE_SIZE + 1;
+    }
+
     private void refreshView(State st) {
         viewInv.clear();
         dealMap = new HashMap<>();
-        for (int i = 0; i < shop.deals.size() && i <= LAST_DEAL; i++) {
-            Deal d = shop.deals.get(i);
-            ItemStack it = d.getItem().clone();
+        page = Math.min(page, pageCount() - 1);
+        int first = page * Shop.PAGE_SIZE;
+        for (int i = 0; first + i < shop.deals.size() && i <= LAST_DEAL; i++) {
+            Deal d = shop.deals.get(first + i);
+            ItemStack it = d.getItem();
             ItemMeta meta = it.getItemMeta();
             if (st == State.REMOVE) {
                 List<String> lore = new ArrayList<String>();
@@ -113,6 +131,8 @@ public class ShopEditor implements InventoryHolder {
             viewInv.setItem(i, it);
             dealMap.put(i, d);
         }
+        if (page > 0) viewInv.setItem(PREVIOUS_PAGE, previousBtn);
+        if (page + 1 < pageCount()) viewInv.setItem(NEXT_PAGE, nextBtn);
     }
 
     private void changeState(State next) {
@@ -153,9 +173,9 @@ public class ShopEditor implements InventoryHolder {
     private void removeDeal(Player player, int slot) {
         Deal d = dealMap.get(slot);
         if (d != null) {
-            shop.deals.remove(d);
+            shop.removeDeal(d);
             shop.refreshView();
-            viewInv.setItem(slot, null);
+            refreshView();
             Chat.s(player, I18n.s("edit.remove.confirm"));
         }
     }
@@ -180,7 +200,7 @@ public class ShopEditor implements InventoryHolder {
                     ItemStack cursor = event.getCursor();
                     if (state != State.REMOVE) {
                         Deal d = dealMap.get(event.getRawSlot());
-                        if (d != null && d.getItem().isSimilar(cursor)) {
+                        if (d != null && d.getItemTemplate().isSimilar(cursor)) {
                             editDealAmount(p, d, cursor);
                         } else if (d != null && state == State.BUY) {
                             editBuyPrice(p, d, cursor);
@@ -208,7 +228,13 @@ public class ShopEditor implements InventoryHolder {
         } else if (event.getRawSlot() >= 0 && event.getRawSlot() < event.getInventory().getSize()) {
             // click in button row
             if (event.getRawSlot() == PREVIEW && state != State.REMOVE) {
-                p.openInventory(shop.viewInv);
+                shop.open(p, plugin);
+            } else if (event.getRawSlot() == PREVIOUS_PAGE && page > 0) {
+                page--;
+                refreshView();
+            } else if (event.getRawSlot() == NEXT_PAGE && page + 1 < pageCount()) {
+                page++;
+                refreshView();
             } else if (event.getRawSlot() == CHEST && state != State.REMOVE) {
                 p.openInventory(shop.sourceInv);
             } else if (event.getRawSlot() == BUY_SELL) {
@@ -246,10 +272,12 @@ public class ShopEditor implements InventoryHolder {
     }
 
     private void addDeal(Player player, ItemStack item) {
-        int slot = viewInv.firstEmpty();
-        if (slot > LAST_DEAL) return;
+        if (shop.deals.size() >= Shop.MAX_DEALS) {
+            Chat.e(player, I18n.s("edit.add.full", Shop.MAX_DEALS));
+            return;
+        }
         Deal d = new Deal(item);
-        shop.deals.add(d);
+        shop.addDeal(d);
         shop.refreshView();
         refreshView();
         Chat.s(player, I18n.s("edit.add.confirm"));
@@ -257,7 +285,7 @@ public class ShopEditor implements InventoryHolder {
 
     private void editBuyPrice(Player player, Deal deal, ItemStack item) {
         if (CurrencyManager.getInstance().isCurrency(item)) {
-            deal.setBuyPrice(item.clone());
+            deal.setBuyPrice(item);
             shop.refreshView();
             refreshView();
             Chat.s(player, I18n.s("edit.buy.confirm", CurrencyManager.getInstance().itemToPrice(item)));
@@ -266,7 +294,7 @@ public class ShopEditor implements InventoryHolder {
 
     private void editSellPrice(Player player, Deal deal, ItemStack item) {
         if (CurrencyManager.getInstance().isCurrency(item)) {
-            deal.setSellPrice(item.clone());
+            deal.setSellPrice(item);
             shop.refreshView();
             refreshView();
             Chat.s(player, I18n.s("edit.sell.confirm", CurrencyManager.getInstance().itemToPrice(item)));
@@ -274,7 +302,7 @@ public class ShopEditor implements InventoryHolder {
     }
 
     private void editDealAmount(Player player, Deal deal, ItemStack item) {
-        deal.getItem().setAmount(item.getAmount());
+        deal.setAmount(item.getAmount());
         shop.refreshView();
         refreshView();
         Chat.s(player, I18n.s("edit.amount.confirm", item.getAmount()));
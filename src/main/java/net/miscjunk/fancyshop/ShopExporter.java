@@ -0,0 +1,132 @@
+package net.miscjunk.fancyshop;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Gzipped export files: a header line, then one JSON object per shop with its items in the ItemCodec format, base64
+// encoded. Both directions stream, so only one shop is in memory at a time.
+public class ShopExporter {
+    private static final String FORMAT = "fancyshop-export";
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+
+    // the file only appears once it is complete
+    public static int export(ShopStore store, File target) throws StoreException, IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        final int[] count = {0};
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), StandardCharsets.UTF_8))) {
+            JsonObject header = new JsonObject();
+            header.addProperty("format", FORMAT);
+            header.addProperty("version", VERSION);
+            header.addProperty("created", System.currentTimeMillis());
+            out.write(header.toString());
+            out.write('\n');
+            store.scan(shop -> {
+                out.write(toJson(shop).toString());
+                out.write('\n');
+                count[0]++;
+            });
+        } catch (StoreException | IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return count[0];
+    }
+
+    public static int read(File source, ShopStore.Visitor visitor) throws StoreException, IOException {
+        int count = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(source), BUFFER_SIZE), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            int lineNumber = 1;
+            try {
+                JsonObject header = line == null ? null : new JsonParser().parse(line).getAsJsonObject();
+                if (header == null || !header.has("format") || !FORMAT.equals(header.get("format").getAsString())) {
+                    throw new IOException(source.getName() + " is not a shop export");
+                }
+                if (header.get("version").getAsInt() > VERSION) {
+                    throw new IOException(source.getName() + " was written by a newer plugin version");
+                }
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isEmpty()) continue;
+                    visitor.visit(fromJson(new JsonParser().parse(line).getAsJsonObject()));
+                    count++;
+                }
+            } catch (JsonParseException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
+                throw new IOException("Invalid shop on line " + lineNumber + " of " + source.getName(), e);
+            }
+        }
+        return count;
+    }
+
+    private static JsonObject toJson(ShopSnapshot shop) {
+        JsonObject json = new JsonObject();
+        json.addProperty("world", shop.getLocation().getWorld());
+        json.addProperty("x", shop.getLocation().getX());
+        json.addProperty("y", shop.getLocation().getY());
+        json.addProperty("z", shop.getLocation().getZ());
+        json.addProperty("owner", shop.getOwner().toString());
+        json.addProperty("name", shop.getName());
+        json.addProperty("admin", shop.isAdmin());
+        JsonArray deals = new JsonArray();
+        for (Deal d : shop.getDeals()) {
+            JsonObject deal = new JsonObject();
+            deal.addProperty("id", d.getId());
+            deal.addProperty("item", encode(d.getItem()));
+            if (d.getBuyPrice() != null) deal.addProperty("buy", encode(d.getBuyPrice()));
+            if (d.getSellPrice() != null) deal.addProperty("sell", encode(d.getSellPrice()));
+            deals.add(deal);
+        }
+        json.add("deals", deals);
+        return json;
+    }
+
+    private static ShopSnapshot fromJson(JsonObject json) {
+        ShopLocation location = new ShopLocation(json.get("world").getAsString(), json.get("x").getAsInt(),
+                json.get("y").getAsInt(), json.get("z").getAsInt());
+        List<Deal> deals = new ArrayList<>();
+        for (JsonElement e : json.get("deals").getAsJsonArray()) {
+            JsonObject deal = e.getAsJsonObject();
+            Deal d = ShopRepository.decodeDeal(deal.get("id").getAsLong(), bytes(deal.get("item")),
+                    bytes(deal.get("buy")), bytes(deal.get("sell")));
+            if (d != null) deals.add(d);
+        }
+        return new ShopSnapshot(location, UUID.fromString(json.get("owner").getAsString()),
+                json.get("name").getAsString(), json.get("admin").getAsBoolean(), deals);
+    }
+
+    private static String encode(ItemStack item) {
+        return Base64.getEncoder().encodeToString(ItemCodec.encode(item));
+    }
+
+    private static byte[] bytes(JsonElement value) {
+        if (value == null || value.isJsonNull()) return null;
+        return Base64.getDecoder().decode(value.getAsString());
+    }
+}
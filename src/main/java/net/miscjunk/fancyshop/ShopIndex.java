@@ -0,0 +1,162 @@
+package net.miscjunk.fancyshop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// The location of every stored shop, loaded or not, bucketed by chunk per world so area queries don't have to ask the
+// store. Kept current by the repository. Main thread only.
+public class ShopIndex {
+    private static class Bucket {
+        long[] positions = new long[2];
+        int size;
+
+        int indexOf(long position) {
+            for (int i = 0; i < size; i++) {
+                if (positions[i] == position) return i;
+            }
+            return -1;
+        }
+    }
+
+    private static class Box {
+        final String world;
+        final int minX, minY, minZ, maxX, maxY, maxZ;
+        final List<ShopLocation> found = new ArrayList<>();
+
+        Box(String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.world = world;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        void collect(Bucket bucket) {
+            for (int i = 0; i < bucket.size; i++) {
+                long p = bucket.positions[i];
+                int x = (int) (p >> 38);
+                int y = (int) (p << 52 >> 52);
+                int z = (int) (p << 26 >> 38);
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                    found.add(new ShopLocation(world, x, y, z));
+                }
+            }
+        }
+    }
+
+    private final BlockMap<Bucket> buckets = new BlockMap<>();
+    private int size;
+
+    public ShopIndex(Collection<ShopLocation> locations) {
+        for (ShopLocation location : locations) {
+            add(location);
+        }
+    }
+
+    public void add(ShopLocation location) {
+        int world = WorldIds.id(location.getWorld());
+        long chunk = ChunkKey.pack(location.getX() >> 4, location.getZ() >> 4);
+        long position = location.pack();
+        Bucket bucket = buckets.get(world, chunk);
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets.put(world, chunk, bucket);
+        } else if (bucket.indexOf(position) != -1) {
+            return;
+        }
+        if (bucket.size == bucket.positions.length) {
+            long[] grown = new long[bucket.size * 2];
+            System.arraycopy(bucket.positions, 0, grown, 0, bucket.size);
+            bucket.positions = grown;
+        }
+        bucket.positions[bucket.size++] = position;
+        size++;
+    }
+
+    public void remove(ShopLocation location) {
+        int world = WorldIds.id(location.getWorld());
+        long chunk = ChunkKey.pack(location.getX() >> 4, location.getZ() >> 4);
+        Bucket bucket = buckets.get(world, chunk);
+        if (bucket == null) return;
+        int i = bucket.indexOf(location.pack());
+        if (i == -1) return;
+        bucket.positions[i] = bucket.positions[--bucket.size];
+        size--;
+        if (bucket.size == 0) buckets.remove(world, chunk);
+    }
+
+    public boolean contains(ShopLocation location) {
+        return contains(location.getWorld(), location.getX(), location.getY(), location.getZ());
+    }
+
+    // doesn't allocate, so event handlers can call it for every block
+    public boolean contains(String world, int x, int y, int z) {
+        Bucket bucket = buckets.get(WorldIds.id(world), ChunkKey.pack(x >> 4, z >> 4));
+        return bucket != null && bucket.indexOf(ShopLocation.pack(x, y, z)) != -1;
+    }
+
+    // a double chest shop is stored at its half with the lower x or z, so the neighbours on that side count too
+    public boolean mayContain(String world, int x, int y, int z) {
+        return contains(world, x, y, z) || contains(world, x - 1, y, z) || contains(world, x, y, z - 1);
+    }
+
+    public boolean hasShopsIn(ChunkKey chunk) {
+        return buckets.get(WorldIds.id(chunk.getWorld()), chunk.pack()) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // bounds included, in no particular order
+    public List<ShopLocation> within(String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        final Box box = new Box(world, minX, minY, minZ, maxX, maxY, maxZ);
+        final int minCx = minX >> 4, maxCx = maxX >> 4, minCz = minZ >> 4, maxCz = maxZ >> 4;
+        int id = WorldIds.id(world);
+        if ((long) (maxCx - minCx + 1) * (maxCz - minCz + 1) <= buckets.size(id)) {
+            for (int cx = minCx; cx <= maxCx; cx++) {
+                for (int cz = minCz; cz <= maxCz; cz++) {
+                    Bucket bucket = buckets.get(id, ChunkKey.pack(cx, cz));
+                    if (bucket != null) box.collect(bucket);
+                }
+            }
+        } else {
+            // the area covers more chunks than have shops, so check those instead
+            buckets.forEach(id, new BlockMap.Visitor<Bucket>() {
+                public void visit(long chunk, Bucket bucket) {
+                    int cx = (int) (chunk >> 32);
+                    int cz = (int) chunk;
+                    if (cx >= minCx && cx <= maxCx && cz >= minCz && cz <= maxCz) box.collect(bucket);
+                }
+            });
+        }
+        return box.found;
+    }
+
+    // nearest first
+    public List<ShopLocation> near(String world, final int x, final int y, final int z, int radius) {
+        List<ShopLocation> found = within(world, x - radius, y - radius, z - radius, x + radius, y + radius,
+                z + radius);
+        long r2 = (long) radius * radius;
+        List<ShopLocation> inRange = new ArrayList<>(found.size());
+        for (ShopLocation l : found) {
+            if (distanceSquared(l, x, y, z) <= r2) inRange.add(l);
+        }
+        Collections.sort(inRange, new Comparator<ShopLocation>() {
+            public int compare(ShopLocation a, ShopLocation b) {
+                return Long.compare(distanceSquared(a, x, y, z), distanceSquared(b, x, y, z));
+            }
+        });
+        return inRange;
+    }
+
+    static long distanceSquared(ShopLocation l, int x, int y, int z) {
+        long dx = l.getX() - x, dy = l.getY() - y, dz = l.getZ() - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
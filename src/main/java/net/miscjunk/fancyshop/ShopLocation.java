@@ -2,7 +2,12 @@ package net.miscjunk.fancyshop;
 
 import org.bukkit.Location;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class ShopLocation {
+    private static final Pattern KEY = Pattern.compile("^block:(.*)x(-?[0-9]+)y(-?[0-9]+)z(-?[0-9]+)$");
+
     String world;
     int x;
     int y;
@@ -22,6 +27,14 @@ public class ShopLocation {
         this.z = z;
     }
 
+    // null if the key isn't one toString made
+    public static ShopLocation fromString(String key) {
+        Matcher m = KEY.matcher(key);
+        if (!m.matches()) return null;
+        return new ShopLocation(m.group(1), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)),
+                Integer.parseInt(m.group(4)));
+    }
+
     public String getWorld() {
         return world;
     }
@@ -38,6 +51,15 @@ public class ShopLocation {
         return z;
     }
 
+    // 26 bits each for x and z, 12 for y
+    public long pack() {
+        return pack(x, y, z);
+    }
+
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof ShopLocation)) return false;
@@ -47,7 +69,7 @@ public class ShopLocation {
 
     @Override
     public int hashCode() {
-        return (world + "x" + x + "y" + y + "z" + z).hashCode();
+        return world.hashCode() * 31 + Long.hashCode(pack());
     }
 
     @Override
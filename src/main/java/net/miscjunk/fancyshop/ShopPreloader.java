@@ -0,0 +1,60 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+// Reads shops and their deals in the background at startup, so the first player or hopper to touch a shop doesn't wait
+// on the database, and hands them to Shop in one main thread task.
+public class ShopPreloader {
+    enum Mode {LAZY, EAGER, WORLDS}
+
+    public static void start(final FancyShop plugin) {
+        Mode mode;
+        try {
+            mode = Mode.valueOf(plugin.getConfig().getString("preload", "lazy").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("Unknown preload mode, loading shops lazily");
+            mode = Mode.LAZY;
+        }
+        if (mode == Mode.LAZY) return;
+        final Set<String> worlds;
+        if (mode == Mode.WORLDS) {
+            List<String> names = plugin.getConfig().getStringList("preload-worlds");
+            if (names.isEmpty()) return;
+            worlds = new HashSet<>(names);
+        } else {
+            worlds = null;
+        }
+
+        Shop.beginPreload();
+        new BukkitRunnable() {
+            public void run() {
+                final long start = System.currentTimeMillis();
+                final Map<ShopLocation, ShopSnapshot> shops;
+                try {
+                    shops = ShopRepository.loadAll(worlds);
+                } catch (StoreException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Couldn't preload shops, falling back to lazy loading", e);
+                    new BukkitRunnable() {
+                        public void run() {
+                            Shop.abortPreload();
+                        }
+                    }.runTask(plugin);
+                    return;
+                }
+                new BukkitRunnable() {
+                    public void run() {
+                        Shop.finishPreload(shops, worlds);
+                        plugin.getLogger().info("Preloaded " + shops.size() + " shops in " +
+                                (System.currentTimeMillis() - start) + " ms");
+                    }
+                }.runTask(plugin);
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+}
@@ -1,170 +1,331 @@
 package net.miscjunk.fancyshop;
 
+import org.bukkit.Bukkit;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.File;
-import java.sql.*;
-import java.util.UUID;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ShopRepository {
+    private static final int MIGRATE_BATCH_SIZE = 500;
+    private static final int IMPORT_BATCH_SIZE = 500;
     private static Plugin plugin;
-    private static Connection db;
+    private static ShopStore store;
+    private static String storeType;
+    private static ShopWriter writer;
+    private static ShopIndex index;
+    private static BukkitTask checkpointTask;
+    private static boolean saveImmediately;
+    private static final AtomicLong lastDealId = new AtomicLong();
 
     public static void init(Plugin plugin) {
-        if (ShopRepository.plugin != null || ShopRepository.db != null) {
+        if (ShopRepository.plugin != null || ShopRepository.store != null) {
             throw new RuntimeException("Already initialized");
         }
         if (!plugin.getDataFolder().exists()) plugin.getDataFolder().mkdir();
-        String dbPath = plugin.getDataFolder().getAbsolutePath() + File.separator + "shops.db";
-        try {
-            Class.forName("org.sqlite.JDBC");
-            db = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException("Couldn't load sqlite library", e);
-        } catch (SQLException e) {
-            throw new RuntimeException("Couldn't open database", e);
-        }
         ShopRepository.plugin = plugin;
+        storeType = plugin.getConfig().getString("storage", "sqlite").toLowerCase();
+        ShopStore store = createStore(storeType);
+        if (store == null) throw new RuntimeException("Unknown storage type " + storeType);
         try {
-            updateSchema();
-        } catch (SQLException e) {
+            store.open();
+            // deal ids are handed out up front so the writer never has to report generated keys back
+            lastDealId.set(store.getLastDealId());
+            index = new ShopIndex(store.locations());
+        } catch (StoreException e) {
+            store.close();
             throw new RuntimeException("Couldn't initialize database", e);
         }
+        ShopRepository.store = store;
+        writer = new ShopWriter(store, plugin.getConfig().getLong("write-delay", 100));
+        writer.start();
+        saveImmediately = plugin.getConfig().getBoolean("save-immediately", true);
+        long interval = plugin.getConfig().getLong("checkpoint-interval", 30) * 20;
+        if (interval > 0) {
+            checkpointTask = new BukkitRunnable() {
+                public void run() {
+                    checkpoint();
+                }
+            }.runTaskTimer(plugin, interval, interval);
+        }
+    }
+
+    // a new, unopened store, or null if there is no such type
+    public static ShopStore createStore(String type) {
+        switch (type.toLowerCase()) {
+            case "sqlite":
+                return new SqliteShopStore(plugin);
+            case "h2":
+                return new H2ShopStore(plugin);
+            case "log":
+                return new LogShopStore(plugin);
+            default:
+                return null;
+        }
+    }
+
+    // call before cleanup so no edits are lost
+    public static boolean drain(long timeoutMillis) {
+        return writer == null || writer.drain(timeoutMillis);
+    }
+
+    // like drain, but fails if the queue isn't committed in time; for storage commands, off the main thread
+    public static void awaitWrites(long timeoutMillis) throws StoreException {
+        if (!drain(timeoutMillis)) throw new StoreException("Queued shop changes weren't saved in time");
+    }
+
+    public static ShopWriter getWriter() {
+        return writer;
+    }
+
+    public static ShopStore getStore() {
+        return store;
+    }
+
+    // every shop location, including shops that aren't loaded
+    public static ShopIndex getIndex() {
+        return index;
+    }
+
+    public static String getStoreType() {
+        return storeType;
+    }
+
+    // queues every shop with unsaved changes and waits for them to be committed; call before cleanup
+    public static boolean flush(long timeoutMillis) {
+        if (writer != null) checkpoint();
+        return drain(timeoutMillis);
+    }
+
+    // the changed shops go to the writer together, so they are committed in one transaction
+    public static int checkpoint() {
+        if (Shop.changedShops.isEmpty()) return 0;
+        List<ShopSnapshot> snapshots = new ArrayList<>(Shop.changedShops.size());
+        for (Shop shop : new ArrayList<>(Shop.changedShops)) {
+            assignDealIds(shop);
+            snapshots.add(new ShopSnapshot(shop));
+            shop.markClean();
+        }
+        writer.storeAll(snapshots);
+        return snapshots.size();
     }
 
     public static void cleanup() {
-        if (db != null) {
-            try {
-                db.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-            db = null;
+        if (checkpointTask != null) {
+            checkpointTask.cancel();
+            checkpointTask = null;
+        }
+        if (writer != null) {
+            writer.shutdown(10000);
+            writer = null;
+        }
+        if (store != null) {
+            store.close();
+            store = null;
         }
+        index = null;
+        plugin = null;
     }
 
-    public static void updateSchema() throws SQLException {
-        Statement stmt = db.createStatement();
-        ResultSet rs = stmt.executeQuery("PRAGMA user_version");
-        if (rs.next()) {
-            int version = rs.getInt(1);
-            if (version > 3) {
-                throw new RuntimeException("Database is newer than plugin version");
+    private static void assignDealIds(Shop shop) {
+        for (Deal d : shop.deals) {
+            if (d.getId() == 0) {
+                d.setId(lastDealId.incrementAndGet());
+                d.setDirty(true);
             }
-            switch (version) {
-                /* Fall-through is intentional, we want ALL updates! */
-                case 0:
-                    stmt.execute("CREATE TABLE shops (" +
-                            "location TEXT NOT NULL," +
-                            "owner TEXT NOT NULL," +
-                            "PRIMARY KEY (location)" +
-                            ")");
-                    stmt.execute("CREATE TABLE deals (" +
-                            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                            "shop_id INT NOT NULL," +
-                            "item TEXT NOT NULL," +
-                            "buy_price TEXT," +
-                            "sell_price TEXT," +
-                            "FOREIGN KEY (shop_id) REFERENCES shops(location)" +
-                            ")");
-                    stmt.execute("PRAGMA user_version=1");
-                case 1:
-                    stmt.execute("ALTER TABLE shops ADD COLUMN is_admin INT NOT NULL DEFAULT 0");
-                    stmt.execute("PRAGMA user_version=2");
-                case 2:
-                    stmt.execute("ALTER TABLE shops ADD COLUMN name TEXT NOT NULL DEFAULT ''");
-                    rs = stmt.executeQuery("SELECT * FROM shops");
-                    while (rs.next()) {
-                        String ownerName = rs.getString("owner");
-                        UUID ownerId = plugin.getServer().getOfflinePlayer(ownerName).getUniqueId();
-                        String name = I18n.s("shop.default-name", ownerName);
-                        PreparedStatement update = db.prepareStatement("UPDATE shops SET owner=?, name=? WHERE location=?");
-                        update.setString(1, ownerId.toString());
-                        update.setString(2, name);
-                        update.setString(3, rs.getString("location"));
-                        update.execute();
-                    }
-                    stmt.execute("PRAGMA user_version=3");
-            }
-        } else {
-            throw new RuntimeException("Couldn't get database schema version");
         }
     }
 
+    // saves right away or at the next checkpoint, depending on save-immediately
     public static boolean store(Shop shop) {
-        try {
-            PreparedStatement stmt = db.prepareStatement("INSERT OR REPLACE INTO shops VALUES (?, ?, ?, ?)");
-            stmt.setString(1, shop.getLocation().toString());
-            stmt.setString(2, shop.getOwner().toString());
-            stmt.setBoolean(3, shop.isAdmin());
-            stmt.setString(4, shop.getName());
-            stmt.execute();
-            stmt = db.prepareStatement("DELETE FROM deals WHERE shop_id=?");
-            stmt.setString(1, shop.getLocation().toString());
-            stmt.execute();
-            for (Deal d : shop.deals) {
-                storeDeal(shop, d);
-            }
+        index.add(shop.getLocation());
+        if (!saveImmediately) {
+            shop.markChanged();
             return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
         }
+        return storeNow(shop);
     }
 
-    private static void storeDeal(Shop shop, Deal deal) throws SQLException {
-        PreparedStatement stmt = db.prepareStatement("INSERT INTO deals (shop_id, item, buy_price, sell_price) VALUES (?,?,?,?)");
-        stmt.setString(1, shop.getLocation().toString());
-        stmt.setString(2, CurrencyManager.itemToString(deal.getItem()));
-        stmt.setString(3, CurrencyManager.itemToString(deal.getBuyPrice()));
-        stmt.setString(4, CurrencyManager.itemToString(deal.getSellPrice()));
-        stmt.execute();
+    public static boolean storeNow(Shop shop) {
+        index.add(shop.getLocation());
+        assignDealIds(shop);
+        writer.store(new ShopSnapshot(shop));
+        shop.markClean();
+        return true;
     }
 
     public static boolean remove(Shop shop) {
+        // nothing left to save for it
+        shop.markClean();
+        index.remove(shop.getLocation());
+        writer.remove(shop.getLocation());
+        return true;
+    }
+
+    // keeps the shop's stored rows instead of rewriting them
+    public static boolean relocate(Shop shop, ShopLocation from) {
+        index.remove(from);
+        index.add(shop.getLocation());
+        assignDealIds(shop);
+        writer.relocate(from, new ShopSnapshot(shop));
+        shop.markClean();
+        return true;
+    }
+
+    public static Shop load(ShopLocation location, Inventory inv) {
+        // the store may be behind the write queue
+        ShopWriter.Write w = writer.getPending(location);
+        if (w != null) return w.isRemoval() ? null : Shop.fromSnapshot(w.shop, inv);
         try {
-            PreparedStatement stmt = db.prepareStatement("DELETE FROM deals WHERE shop_id=?");
-            stmt.setString(1, shop.getLocation().toString());
-            stmt.execute();
-            stmt = db.prepareStatement("DELETE FROM shops WHERE location=?");
-            stmt.setString(1, shop.getLocation().toString());
-            stmt.execute();
-            return true;
-        } catch (SQLException e) {
+            ShopSnapshot snapshot = store.load(location);
+            return snapshot == null ? null : Shop.fromSnapshot(snapshot, inv);
+        } catch (StoreException e) {
             e.printStackTrace();
-            return false;
+            return null;
         }
     }
 
-    public static Shop load(ShopLocation location, Inventory inv) {
+    // all worlds if null; safe off the main thread
+    public static Map<ShopLocation, ShopSnapshot> loadAll(Set<String> worlds) throws StoreException {
+        return store.loadAll(worlds);
+    }
+
+    // drops prices that are no longer currencies; null, with a warning, if the item or a set price can't be decoded
+    static Deal decodeDeal(long id, byte[] item, byte[] buyPrice, byte[] sellPrice) {
+        ItemStack i = ItemCodec.decode(item);
+        ItemStack buy = ItemCodec.decode(buyPrice);
+        ItemStack sell = ItemCodec.decode(sellPrice);
+        if (i == null || (buyPrice != null && buy == null) || (sellPrice != null && sell == null)) {
+            Bukkit.getLogger().warning("[FancyShop] Skipping deal " + id + ", its items couldn't be read");
+            return null;
+        }
+        return newDeal(id, i, buy, sell);
+    }
+
+    static Deal newDeal(long id, ItemStack item, ItemStack buyPrice, ItemStack sellPrice) {
+        if (!CurrencyManager.getInstance().isCurrency(buyPrice)) buyPrice = null;
+        if (!CurrencyManager.getInstance().isCurrency(sellPrice)) sellPrice = null;
+        Deal d = new Deal(item, buyPrice, sellPrice);
+        d.setId(id);
+        return d;
+    }
+
+    // the target must not be the active store, and the caller should drain first if the source is; blocks
+    public static int migrate(String from, String to) throws StoreException {
+        if (to.equalsIgnoreCase(storeType)) throw new StoreException("Can't migrate into the active backend");
+        if (from.equalsIgnoreCase(to)) throw new StoreException("Source and target are the same");
+        boolean active = from.equalsIgnoreCase(storeType);
+        ShopStore source = active ? store : createStore(from);
+        ShopStore target = createStore(to);
+        if (source == null) throw new StoreException("Unknown storage type " + from);
+        if (target == null) throw new StoreException("Unknown storage type " + to);
         try {
-            PreparedStatement stmt = db.prepareStatement("SELECT * FROM shops WHERE location=?");
-            stmt.setString(1, location.toString());
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) return null;
-            UUID owner = UUID.fromString(rs.getString("owner"));
-            boolean admin = rs.getBoolean("is_admin");
-            String name = rs.getString("name");
-            Shop shop = new Shop(location, inv, owner, name, admin);
-            stmt = db.prepareStatement("SELECT * FROM deals WHERE shop_id=?");
-            stmt.setString(1, location.toString());
-            rs = stmt.executeQuery();
-            while (rs.next()) {
-                ItemStack item = CurrencyManager.stringToItem(rs.getString("item"));
-                ItemStack buyPrice = CurrencyManager.stringToItem(rs.getString("buy_price"));
-                ItemStack sellPrice = CurrencyManager.stringToItem(rs.getString("sell_price"));
-                if (!CurrencyManager.getInstance().isCurrency(buyPrice)) buyPrice = null;
-                if (!CurrencyManager.getInstance().isCurrency(sellPrice)) sellPrice = null;
-                Deal d = new Deal(item, buyPrice, sellPrice);
-                shop.deals.add(d);
+            if (!active) source.open();
+            target.open();
+            // deal ids are kept, so they could collide with whatever is already there
+            if (target.getLastDealId() > 0) throw new StoreException("The " + to + " backend already has shops");
+            Map<ShopLocation, ShopSnapshot> shops = source.loadAll(null);
+            List<ShopWriter.Write> batch = new ArrayList<>(MIGRATE_BATCH_SIZE);
+            for (ShopSnapshot shop : shops.values()) {
+                shop.full = true;
+                batch.add(ShopWriter.Write.store(shop));
+                if (batch.size() == MIGRATE_BATCH_SIZE) {
+                    target.write(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) target.write(batch);
+            return shops.size();
+        } finally {
+            if (!active) source.close();
+            target.close();
+        }
+    }
+
+    private static String timestamp() {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    }
+
+    private static File folder(String name) throws IOException {
+        File dir = new File(plugin.getDataFolder(), name);
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Couldn't create " + dir);
+        return dir;
+    }
+
+    public static File backup() throws StoreException, IOException {
+        return store.backup(folder("backups"), "shops-" + timestamp());
+    }
+
+    public static File export() throws StoreException, IOException {
+        File target = new File(folder("exports"), "shops-" + timestamp() + ".jsonl.gz");
+        ShopExporter.export(store, target);
+        return target;
+    }
+
+    // null if the name would point outside the exports folder
+    public static File getExport(String name) throws IOException {
+        return resolve(folder("exports"), name);
+    }
+
+    // a file directly in dir, after resolving links; null for absolute paths, parent references and hidden names
+    static File resolve(File dir, String name) throws IOException {
+        if (name.isEmpty() || name.startsWith(".") || name.contains("..") || new File(name).isAbsolute()) return null;
+        File canonicalDir = dir.getCanonicalFile();
+        File file = new File(canonicalDir, name).getCanonicalFile();
+        return canonicalDir.equals(file.getParentFile()) ? file : null;
+    }
+
+    // replaces shops at the same locations; deals get new ids so they can't collide with existing ones
+    public static int importShops(File source, final long timeoutMillis) throws StoreException, IOException {
+        final List<ShopSnapshot> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        int count = ShopExporter.read(source, shop -> {
+            for (Deal d : shop.getDeals()) {
+                d.setId(lastDealId.incrementAndGet());
+            }
+            shop.full = true;
+            batch.add(shop);
+            if (batch.size() == IMPORT_BATCH_SIZE) importBatch(batch, timeoutMillis);
+        });
+        importBatch(batch, timeoutMillis);
+        return count;
+    }
+
+    private static void importBatch(List<ShopSnapshot> batch, long timeoutMillis) throws StoreException {
+        if (batch.isEmpty()) return;
+        final List<ShopSnapshot> shops = new ArrayList<>(batch);
+        batch.clear();
+        // queued on the main thread together with replacing the loaded copies, so a checkpoint can't queue their
+        // old edits after the imported shops
+        Future<Void> queued = Bukkit.getScheduler().callSyncMethod(plugin, () -> {
+            writer.storeAll(shops);
+            for (ShopSnapshot shop : shops) {
+                index.add(shop.getLocation());
+                Shop.replaceShop(shop);
             }
-            shop.refreshView();
-            return shop;
-        } catch (SQLException e) {
-            e.printStackTrace();
             return null;
+        });
+        try {
+            queued.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException("Import was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new StoreException("Couldn't queue imported shops", e.getCause());
         }
+        // one batch at a time, so the queue never holds the whole file
+        awaitWrites(timeoutMillis);
     }
 }
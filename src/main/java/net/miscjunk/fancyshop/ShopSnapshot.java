@@ -0,0 +1,77 @@
+package net.miscjunk.fancyshop;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+// A copy of a shop's persistent state, safe to hand to another thread, with what changed since the previous save so the
+// writer only touches the rows that need it.
+public class ShopSnapshot {
+    final ShopLocation location;
+    final UUID owner;
+    final String name;
+    final boolean admin;
+    final List<Deal> deals;
+    boolean full; // rewrite the shop and all its deals
+    boolean shopChanged;
+    final Set<Long> changedDeals = new HashSet<>();
+    final Set<Long> removedDeals = new HashSet<>();
+
+    public ShopSnapshot(Shop shop) {
+        this.location = shop.getLocation();
+        this.owner = shop.getOwner();
+        this.name = shop.getName();
+        this.admin = shop.isAdmin();
+        this.deals = new ArrayList<>(shop.deals.size());
+        for (Deal d : shop.deals) {
+            deals.add(d.copy());
+            if (d.isDirty()) changedDeals.add(d.getId());
+        }
+        this.shopChanged = shop.dirty;
+        this.removedDeals.addAll(shop.removedDeals);
+    }
+
+    public ShopSnapshot(ShopLocation location, UUID owner, String name, boolean admin, List<Deal> deals) {
+        this.location = location;
+        this.owner = owner;
+        this.name = name;
+        this.admin = admin;
+        this.deals = deals;
+    }
+
+    // the changes of an older, uncommitted write to the same location
+    void mergeOlder(ShopWriter.Write older) {
+        if (older.isRemoval()) {
+            // the old rows are still in the database, replace them wholesale
+            full = true;
+            return;
+        }
+        ShopSnapshot o = older.shop;
+        full |= o.full;
+        shopChanged |= o.shopChanged;
+        changedDeals.addAll(o.changedDeals);
+        removedDeals.addAll(o.removedDeals);
+    }
+
+    public ShopLocation getLocation() {
+        return location;
+    }
+
+    public UUID getOwner() {
+        return owner;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    public List<Deal> getDeals() {
+        return deals;
+    }
+}
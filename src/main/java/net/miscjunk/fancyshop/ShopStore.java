@@ -0,0 +1,55 @@
+package net.miscjunk.fancyshop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+// A storage backend for shops. load runs on the main thread, write on the writer thread and loadAll on any thread, so
+// implementations must not share unsynchronized state between them.
+public interface ShopStore {
+    interface Visitor {
+        void visit(ShopSnapshot shop) throws IOException, StoreException;
+    }
+
+    void open() throws StoreException;
+
+    void close();
+
+    // null if there is no shop there
+    ShopSnapshot load(ShopLocation location) throws StoreException;
+
+    // all worlds if null
+    Map<ShopLocation, ShopSnapshot> loadAll(Set<String> worlds) throws StoreException;
+
+    // without reading the shops themselves
+    Set<ShopLocation> locations() throws StoreException;
+
+    // off the main thread
+    Map<ShopLocation, ShopSnapshot> loadChunk(ChunkKey chunk) throws StoreException;
+
+    // one shop at a time, from a consistent view of the store; off the main thread
+    void scan(Visitor visitor) throws StoreException, IOException;
+
+    // a consistent copy, without stopping writes, named name plus a store specific extension; off the main thread
+    File backup(File directory, String name) throws StoreException;
+
+    // atomically, in order
+    void write(Iterable<ShopWriter.Write> batch) throws StoreException;
+
+    // so new deals can be given ids before they are written
+    long getLastDealId() throws StoreException;
+
+    default void store(ShopSnapshot shop) throws StoreException {
+        write(Collections.singletonList(ShopWriter.Write.store(shop)));
+    }
+
+    default void remove(ShopLocation location) throws StoreException {
+        write(Collections.singletonList(ShopWriter.Write.remove(location)));
+    }
+
+    default void relocate(ShopLocation from, ShopSnapshot shop) throws StoreException {
+        write(Collections.singletonList(ShopWriter.Write.relocate(from, shop)));
+    }
+}
@@ -0,0 +1,394 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Bukkit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+// Write-behind queue for shops. Snapshots are queued on the main thread and committed in batches by an I/O thread;
+// writes to the same location before the next flush are coalesced.
+public class ShopWriter implements Runnable {
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+
+    public static class Write {
+        final ShopLocation location;
+        final ShopSnapshot shop; // null for a removal
+        ShopLocation from; // where the shop was before, if it moved
+
+        private Write(ShopLocation location, ShopSnapshot shop, ShopLocation from) {
+            this.location = location;
+            this.shop = shop;
+            this.from = from;
+        }
+
+        static Write store(ShopSnapshot shop) {
+            return new Write(shop.getLocation(), shop, null);
+        }
+
+        static Write remove(ShopLocation location) {
+            return new Write(location, null, null);
+        }
+
+        static Write relocate(ShopLocation from, ShopSnapshot shop) {
+            return new Write(shop.getLocation(), shop, from);
+        }
+
+        public ShopLocation getLocation() {
+            return location;
+        }
+
+        public ShopSnapshot getShop() {
+            return shop;
+        }
+
+        public ShopLocation getFrom() {
+            return from;
+        }
+
+        public boolean isRemoval() {
+            return shop == null;
+        }
+    }
+
+    private final ShopStore store;
+    private final long delayMillis;
+    private final Object lock = new Object();
+    private Map<ShopLocation, Write> pending = new LinkedHashMap<>();
+    private Map<ShopLocation, Write> inFlight = new HashMap<>();
+    // the writes of each queue by the chunks they touch, so a chunk load doesn't go through the whole queue. Writes
+    // that were coalesced away stay listed until their queue is committed, lookups skip them.
+    private Map<ChunkKey, List<Write>> pendingByChunk = new HashMap<>();
+    private Map<ChunkKey, List<Write>> inFlightByChunk = new HashMap<>();
+    private boolean running;
+    private boolean flushRequested;
+    private Thread thread;
+
+    private long writeCount;
+    private long coalescedCount;
+    private long flushCount;
+    private long lastFlushNanos;
+    private long maxFlushNanos;
+    private long totalFlushNanos;
+
+    public ShopWriter(ShopStore store, long delayMillis) {
+        this.store = store;
+        this.delayMillis = delayMillis;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (thread != null) throw new IllegalStateException("Writer already started");
+            running = true;
+            thread = new Thread(this, "FancyShop-Writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void store(ShopSnapshot shop) {
+        enqueue(Write.store(shop));
+    }
+
+    // queued together, so they end up in the same batch
+    public void storeAll(Collection<ShopSnapshot> shops) {
+        synchronized (lock) {
+            for (ShopSnapshot shop : shops) {
+                enqueue(Write.store(shop));
+            }
+        }
+    }
+
+    public void remove(ShopLocation location) {
+        enqueue(Write.remove(location));
+    }
+
+    public void relocate(ShopLocation from, ShopSnapshot shop) {
+        enqueue(Write.relocate(from, shop));
+    }
+
+    private void enqueue(Write write) {
+        synchronized (lock) {
+            if (!running) throw new IllegalStateException("Writer is not running");
+            if (!thread.isAlive()) throw new IllegalStateException("Writer thread died");
+            // the changes in flight may not make it to the database, so this write can't rely on them
+            if (!write.isRemoval() && inFlight.containsKey(write.location)) write.shop.full = true;
+            coalescedCount += merge(write);
+            lock.notifyAll();
+        }
+    }
+
+    // adds a write to pending, folding in the older writes it replaces; returns how many it replaced
+    private int merge(Write write) {
+        int coalesced = 0;
+        if (write.from != null) {
+            // an uncommitted write at the old location travels with the shop
+            Write source = pending.remove(write.from);
+            if (source != null && !source.isRemoval()) {
+                coalesced++;
+                write.shop.mergeOlder(source);
+                if (source.from != null) write.from = source.from;
+            }
+        }
+        // remove first so a coalesced write moves to the back and keeps its order relative to other locations
+        Write older = pending.remove(write.location);
+        if (older != null) {
+            coalesced++;
+            if (!write.isRemoval()) {
+                write.shop.mergeOlder(older);
+                if (write.from == null) write.from = older.from;
+            } else if (older.from != null) {
+                // the shop never made it to its new location, so the old row has to go too
+                Write atSource = pending.get(older.from);
+                if (atSource == null) {
+                    queue(Write.remove(older.from));
+                } else if (!atSource.isRemoval()) {
+                    atSource.shop.full = true;
+                }
+            }
+        }
+        queue(write);
+        return coalesced;
+    }
+
+    private void queue(Write write) {
+        pending.put(write.location, write);
+        byChunk(pendingByChunk, ChunkKey.of(write.location)).add(write);
+        if (write.from != null && !ChunkKey.of(write.location).contains(write.from)) {
+            byChunk(pendingByChunk, ChunkKey.of(write.from)).add(write);
+        }
+    }
+
+    private static List<Write> byChunk(Map<ChunkKey, List<Write>> index, ChunkKey chunk) {
+        List<Write> writes = index.get(chunk);
+        if (writes == null) {
+            writes = new ArrayList<>(2);
+            index.put(chunk, writes);
+        }
+        return writes;
+    }
+
+    // puts a batch that failed back in front of the writes queued since, as full rewrites since it's unknown how
+    // much of it reached the database
+    private void requeue(List<Write> batch) {
+        Map<ShopLocation, Write> newer = pending;
+        pending = new LinkedHashMap<>();
+        pendingByChunk = new HashMap<>();
+        for (Write w : batch) {
+            if (!w.isRemoval()) w.shop.full = true;
+            queue(w);
+        }
+        for (Write w : newer.values()) {
+            merge(w);
+        }
+    }
+
+    // the newest uncommitted write, or null if the database is current; a location a shop is moving away from reports a
+    // removal
+    public Write getPending(ShopLocation location) {
+        ChunkKey chunk = ChunkKey.of(location);
+        synchronized (lock) {
+            Write w = pending.get(location);
+            if (w != null) return w;
+            if (isMovingFrom(pending, pendingByChunk.get(chunk), location)) return Write.remove(location);
+            w = inFlight.get(location);
+            if (w != null) return w;
+            if (isMovingFrom(inFlight, inFlightByChunk.get(chunk), location)) return Write.remove(location);
+            return null;
+        }
+    }
+
+    private static boolean isMovingFrom(Map<ShopLocation, Write> queue, List<Write> writes, ShopLocation location) {
+        if (writes == null) return false;
+        for (Write w : writes) {
+            if (location.equals(w.from) && queue.get(w.location) == w) return true;
+        }
+        return false;
+    }
+
+    public Map<ShopLocation, Write> getPendingIn(ChunkKey chunk) {
+        Map<ShopLocation, Write> writes = new HashMap<>();
+        synchronized (lock) {
+            // newer writes overwrite older ones
+            collect(inFlight, inFlightByChunk.get(chunk), chunk, writes);
+            collect(pending, pendingByChunk.get(chunk), chunk, writes);
+        }
+        return writes;
+    }
+
+    private static void collect(Map<ShopLocation, Write> queue, List<Write> inChunk, ChunkKey chunk,
+                                Map<ShopLocation, Write> writes) {
+        if (inChunk == null) return;
+        for (Write w : inChunk) {
+            if (queue.get(w.location) != w) continue; // coalesced away
+            if (w.from != null && chunk.contains(w.from)) writes.put(w.from, Write.remove(w.from));
+        }
+        for (Write w : inChunk) {
+            if (queue.get(w.location) != w) continue;
+            if (chunk.contains(w.location)) writes.put(w.location, w);
+        }
+    }
+
+    // returns false if the timeout expired before everything queued was committed
+    public boolean drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            if (pending.isEmpty() && inFlight.isEmpty()) {
+                flushRequested = false;
+                return true;
+            }
+            flushRequested = true;
+            lock.notifyAll();
+            while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                if (thread == null || !thread.isAlive()) {
+                    Bukkit.getLogger().severe("FancyShop: writer thread is not running, " + getQueueDepth() +
+                            " shop writes can't be saved");
+                    return false;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            flushRequested = false;
+            return true;
+        }
+    }
+
+    // writes still queued after the timeout are lost
+    public void shutdown(long timeoutMillis) {
+        boolean drained = drain(timeoutMillis);
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+            t = thread;
+        }
+        if (t != null) {
+            try {
+                t.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!drained) {
+            Bukkit.getLogger().warning("FancyShop: " + getQueueDepth() + " shop writes were not saved before shutdown");
+        }
+    }
+
+    public void run() {
+        long backoff = 0;
+        while (true) {
+            List<Write> batch;
+            synchronized (lock) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) return;
+                // give a burst of edits a moment to coalesce before committing, or the store time to recover
+                long until = System.currentTimeMillis() + Math.max(delayMillis, backoff);
+                long remaining;
+                while (running && (backoff > 0 || !flushRequested) &&
+                        (remaining = until - System.currentTimeMillis()) > 0) {
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                flushRequested = false;
+                batch = new ArrayList<>(pending.values());
+                inFlight = pending;
+                inFlightByChunk = pendingByChunk;
+                pending = new LinkedHashMap<>();
+                pendingByChunk = new HashMap<>();
+            }
+            long start = System.nanoTime();
+            boolean committed = commit(batch);
+            long elapsed = System.nanoTime() - start;
+            synchronized (lock) {
+                inFlight = new HashMap<>();
+                inFlightByChunk = new HashMap<>();
+                if (committed) {
+                    backoff = 0;
+                    writeCount += batch.size();
+                    flushCount++;
+                    lastFlushNanos = elapsed;
+                    totalFlushNanos += elapsed;
+                    if (elapsed > maxFlushNanos) maxFlushNanos = elapsed;
+                } else {
+                    requeue(batch);
+                    backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff * 2));
+                }
+                lock.notifyAll();
+                // shutting down, leave the rest for shutdown to report
+                if (!committed && !running) return;
+            }
+        }
+    }
+
+    private boolean commit(List<Write> batch) {
+        try {
+            store.write(batch);
+            return true;
+        } catch (StoreException | RuntimeException e) {
+            Bukkit.getLogger().log(Level.SEVERE, "FancyShop: couldn't save " + batch.size() + " shops, retrying", e);
+            return false;
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    public long getWriteCount() {
+        synchronized (lock) {
+            return writeCount;
+        }
+    }
+
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    public long getFlushCount() {
+        synchronized (lock) {
+            return flushCount;
+        }
+    }
+
+    public double getLastFlushMillis() {
+        synchronized (lock) {
+            return lastFlushNanos / 1e6;
+        }
+    }
+
+    public double getMaxFlushMillis() {
+        synchronized (lock) {
+            return maxFlushNanos / 1e6;
+        }
+    }
+
+    public double getAverageFlushMillis() {
+        synchronized (lock) {
+            return flushCount == 0 ? 0 : totalFlushNanos / 1e6 / flushCount;
+        }
+    }
+}
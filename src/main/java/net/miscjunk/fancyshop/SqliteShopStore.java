@@ -0,0 +1,422 @@
+package net.miscjunk.fancyshop;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+
+public class SqliteShopStore extends JdbcShopStore {
+    private final String url;
+
+    public SqliteShopStore(Plugin plugin) {
+        super(plugin);
+        url = "jdbc:sqlite:" + plugin.getDataFolder().getAbsolutePath() + File.separator + "shops.db";
+    }
+
+    public void open() throws StoreException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new StoreException("Couldn't load sqlite library", e);
+        }
+        super.open();
+    }
+
+    protected Connection connect() throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        Statement stmt = conn.createStatement();
+        // WAL lets the main thread keep reading while the writer thread commits
+        stmt.execute("PRAGMA journal_mode=WAL");
+        stmt.execute("PRAGMA busy_timeout=5000");
+        stmt.close();
+        return conn;
+    }
+
+    public File backup(File directory, String name) throws StoreException {
+        File target = new File(directory, name + ".db");
+        // sqlite-jdbc strips the outer quotes and takes the rest as is, it has no way to escape a quote inside
+        if (target.getAbsolutePath().contains("\"")) {
+            throw new StoreException("Can't back up to " + target + ", the path contains a double quote");
+        }
+        try {
+            Connection conn = connect();
+            try {
+                // sqlite-jdbc's online backup; in WAL mode it copies a consistent snapshot without blocking the writer
+                conn.createStatement().executeUpdate("backup to \"" + target.getAbsolutePath() + "\"");
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            throw new StoreException("Couldn't back up to " + target, e);
+        }
+        return target;
+    }
+
+    protected String upsertDealSql() {
+        return "INSERT OR REPLACE INTO deals (id, shop_id, item, buy_price, sell_price) VALUES (?,?,?,?,?)";
+    }
+
+    protected void updateSchema() throws SQLException {
+        Statement stmt = db.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA user_version");
+        if (rs.next()) {
+            int version = rs.getInt(1);
+            rs.close();
+            stmt.close();
+            if (version > 6) {
+                throw new RuntimeException("Database is newer than plugin version");
+            }
+            SchemaMigrator migrator = new SchemaMigrator(db, plugin.getLogger());
+            switch (version) {
+                /* Fall-through is intentional, we want ALL updates! */
+                case 0:
+                    migrator.run(new SchemaMigrator.Step(1, "shops") {
+                        void begin(Connection db) throws SQLException {
+                            Statement stmt = db.createStatement();
+                            stmt.execute("CREATE TABLE shops (" +
+                                    "location TEXT NOT NULL," +
+                                    "owner TEXT NOT NULL," +
+                                    "PRIMARY KEY (location)" +
+                                    ")");
+                            stmt.execute("CREATE TABLE deals (" +
+                                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                                    "shop_id INT NOT NULL," +
+                                    "item TEXT NOT NULL," +
+                                    "buy_price TEXT," +
+                                    "sell_price TEXT," +
+                                    "FOREIGN KEY (shop_id) REFERENCES shops(location)" +
+                                    ")");
+                            stmt.close();
+                        }
+                    });
+                case 1:
+                    migrator.run(new SchemaMigrator.Step(2, "shops") {
+                        void begin(Connection db) throws SQLException {
+                            Statement stmt = db.createStatement();
+                            stmt.execute("ALTER TABLE shops ADD COLUMN is_admin INT NOT NULL DEFAULT 0");
+                            stmt.close();
+                        }
+                    });
+                case 2:
+                    migrator.run(new OwnerStep());
+                case 3:
+                    migrator.run(new LocationStep());
+                case 4:
+                    migrator.run(new ItemStep());
+                case 5:
+                    migrator.run(new SchemaMigrator.Step(6, "shops") {
+                        void begin(Connection db) throws SQLException {
+                            addChunkColumns(db);
+                        }
+                    });
+            }
+        } else {
+            throw new RuntimeException("Couldn't get database schema version");
+        }
+    }
+
+    // owner names to UUIDs, and a default name for every shop. Each owner is resolved once, from the server's user
+    // cache where possible
+    private class OwnerStep extends SchemaMigrator.Step {
+        private final Map<String, UUID> owners = new HashMap<>();
+        private PreparedStatement select;
+        private PreparedStatement update;
+
+        OwnerStep() {
+            super(3, "shops");
+        }
+
+        void begin(Connection db) throws SQLException {
+            Statement stmt = db.createStatement();
+            stmt.execute("ALTER TABLE shops ADD COLUMN name TEXT NOT NULL DEFAULT ''");
+            stmt.close();
+        }
+
+        void prepare(Connection db) throws SQLException {
+            select = db.prepareStatement("SELECT rowid, owner FROM shops WHERE rowid > ? ORDER BY rowid LIMIT ?");
+            update = db.prepareStatement("UPDATE shops SET owner=?, name=? WHERE rowid=?");
+            PreparedStatement names = db.prepareStatement("SELECT DISTINCT owner FROM shops WHERE rowid > ?");
+            names.setLong(1, position);
+            ResultSet rs = names.executeQuery();
+            Map<String, UUID> cache = null;
+            int lookups = 0;
+            while (rs.next()) {
+                String name = rs.getString(1);
+                if (cache == null) cache = readUserCache();
+                UUID id = cache.get(name.toLowerCase(Locale.ROOT));
+                if (id == null) {
+                    id = plugin.getServer().getOfflinePlayer(name).getUniqueId();
+                    lookups++;
+                }
+                owners.put(name, id);
+            }
+            rs.close();
+            names.close();
+            if (!owners.isEmpty()) {
+                plugin.getLogger().info("Resolved " + owners.size() + " shop owners, " + lookups +
+                        " of them not in the user cache");
+            }
+        }
+
+        long remaining(Connection db) throws SQLException {
+            return count(db, "SELECT COUNT(*) FROM shops WHERE rowid > ?", position);
+        }
+
+        int migrate(int limit) throws SQLException {
+            select.setLong(1, position);
+            select.setInt(2, limit);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                String ownerName = rs.getString(2);
+                update.setString(1, owners.get(ownerName).toString());
+                update.setString(2, I18n.s("shop.default-name", ownerName));
+                update.setLong(3, rs.getLong(1));
+                update.addBatch();
+                position = rs.getLong(1);
+                count++;
+            }
+            rs.close();
+            update.executeBatch();
+            return count;
+        }
+
+        void close() throws SQLException {
+            if (select != null) select.close();
+            if (update != null) update.close();
+        }
+    }
+
+    // names are lower case, like the server matches them
+    private Map<String, UUID> readUserCache() {
+        Map<String, UUID> cache = new HashMap<>();
+        File file = new File(plugin.getServer().getWorldContainer(), "usercache.json");
+        if (!file.isFile()) return cache;
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            for (JsonElement e : new JsonParser().parse(in).getAsJsonArray()) {
+                JsonObject entry = e.getAsJsonObject();
+                cache.put(entry.get("name").getAsString().toLowerCase(Locale.ROOT),
+                        UUID.fromString(entry.get("uuid").getAsString()));
+            }
+        } catch (IOException | JsonParseException | IllegalStateException | IllegalArgumentException |
+                NullPointerException e) {
+            plugin.getLogger().log(Level.WARNING, "Couldn't read " + file + ", looking up owners one by one", e);
+            cache.clear();
+        }
+        return cache;
+    }
+
+    // TEXT location keys to an integer shop id and indexed coordinates. A temporary index on the old deals table lets
+    // each chunk of shops bring its deals along
+    private class LocationStep extends SchemaMigrator.Step {
+        private PreparedStatement select;
+        private PreparedStatement insert;
+        private PreparedStatement insertDeals;
+
+        LocationStep() {
+            super(4, "shops");
+        }
+
+        void begin(Connection db) throws SQLException {
+            Statement stmt = db.createStatement();
+            stmt.execute("ALTER TABLE shops RENAME TO shops_v3");
+            stmt.execute("ALTER TABLE deals RENAME TO deals_v3");
+            stmt.execute("CREATE INDEX deals_v3_shop ON deals_v3 (shop_id)");
+            createTablesV4(stmt);
+            stmt.close();
+        }
+
+        void prepare(Connection db) throws SQLException {
+            select = db.prepareStatement("SELECT rowid, location, owner, is_admin, name FROM shops_v3 " +
+                    "WHERE rowid > ? ORDER BY rowid LIMIT ?");
+            insert = db.prepareStatement("INSERT INTO shops (id, world, x, y, z, owner, is_admin, name) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            insertDeals = db.prepareStatement("INSERT INTO deals (id, shop_id, item, buy_price, sell_price) " +
+                    "SELECT d.id, s.id, d.item, d.buy_price, d.sell_price FROM shops_v3 o " +
+                    "JOIN deals_v3 d ON d.shop_id = o.location JOIN shops s ON s.id = o.rowid " +
+                    "WHERE o.rowid > ? AND o.rowid <= ?");
+        }
+
+        long remaining(Connection db) throws SQLException {
+            return count(db, "SELECT COUNT(*) FROM shops_v3 WHERE rowid > ?", position);
+        }
+
+        int migrate(int limit) throws SQLException {
+            long from = position;
+            select.setLong(1, position);
+            select.setInt(2, limit);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                position = rs.getLong(1);
+                count++;
+                ShopLocation location = ShopLocation.fromString(rs.getString(2));
+                if (location == null) {
+                    plugin.getLogger().warning("Dropping shop with invalid location " + rs.getString(2));
+                    continue;
+                }
+                insert.setLong(1, position);
+                setLocation(insert, 2, location);
+                insert.setString(6, rs.getString(3));
+                insert.setBoolean(7, rs.getBoolean(4));
+                insert.setString(8, rs.getString(5));
+                insert.addBatch();
+            }
+            rs.close();
+            if (count == 0) return 0;
+            insert.executeBatch();
+            insertDeals.setLong(1, from);
+            insertDeals.setLong(2, position);
+            insertDeals.execute();
+            return count;
+        }
+
+        void finish(Connection db) throws SQLException {
+            Statement stmt = db.createStatement();
+            stmt.execute("DROP TABLE deals_v3");
+            stmt.execute("DROP TABLE shops_v3");
+            stmt.close();
+        }
+
+        void close() throws SQLException {
+            if (select != null) select.close();
+            if (insert != null) insert.close();
+            if (insertDeals != null) insertDeals.close();
+        }
+    }
+
+    // YAML item strings to ItemCodec BLOBs. Values that can't be parsed stay as they are, ItemCodec.decode still reads
+    // them
+    private class ItemStep extends SchemaMigrator.Step {
+        private PreparedStatement select;
+        private PreparedStatement insert;
+
+        ItemStep() {
+            super(5, "deals");
+        }
+
+        void begin(Connection db) throws SQLException {
+            Statement stmt = db.createStatement();
+            stmt.execute("DROP INDEX deals_shop");
+            stmt.execute("ALTER TABLE deals RENAME TO deals_v4");
+            createDealsV5(stmt);
+            stmt.close();
+        }
+
+        void prepare(Connection db) throws SQLException {
+            select = db.prepareStatement("SELECT id, shop_id, item, buy_price, sell_price FROM deals_v4 " +
+                    "WHERE id > ? ORDER BY id LIMIT ?");
+            insert = db.prepareStatement("INSERT INTO deals (id, shop_id, item, buy_price, sell_price) " +
+                    "VALUES (?, ?, ?, ?, ?)");
+        }
+
+        long remaining(Connection db) throws SQLException {
+            return count(db, "SELECT COUNT(*) FROM deals_v4 WHERE id > ?", position);
+        }
+
+        int migrate(int limit) throws SQLException {
+            select.setLong(1, position);
+            select.setInt(2, limit);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                position = rs.getLong(1);
+                insert.setLong(1, position);
+                insert.setLong(2, rs.getLong(2));
+                insert.setBytes(3, convertItem(rs.getString(3)));
+                insert.setBytes(4, convertItem(rs.getString(4)));
+                insert.setBytes(5, convertItem(rs.getString(5)));
+                insert.addBatch();
+                count++;
+            }
+            rs.close();
+            insert.executeBatch();
+            return count;
+        }
+
+        void finish(Connection db) throws SQLException {
+            Statement stmt = db.createStatement();
+            stmt.execute("DROP TABLE deals_v4");
+            stmt.close();
+        }
+
+        void close() throws SQLException {
+            if (select != null) select.close();
+            if (insert != null) insert.close();
+        }
+    }
+
+    // so a chunk's shops load with one indexed lookup
+    private static void addChunkColumns(Connection db) throws SQLException {
+        Statement stmt = db.createStatement();
+        stmt.execute("ALTER TABLE shops ADD COLUMN cx INT NOT NULL DEFAULT 0");
+        stmt.execute("ALTER TABLE shops ADD COLUMN cz INT NOT NULL DEFAULT 0");
+        stmt.execute("UPDATE shops SET cx = x >> 4, cz = z >> 4");
+        stmt.execute("CREATE INDEX shops_chunk ON shops (world, cx, cz)");
+        stmt.close();
+    }
+
+    private static byte[] convertItem(String yaml) {
+        if (yaml == null) return null;
+        ItemStack item = CurrencyManager.stringToItem(yaml);
+        if (item == null) return yaml.getBytes(StandardCharsets.UTF_8);
+        return ItemCodec.encode(item);
+    }
+
+    private static void createDealsV5(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE deals (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "shop_id INTEGER NOT NULL," +
+                "item BLOB NOT NULL," +
+                "buy_price BLOB," +
+                "sell_price BLOB," +
+                "FOREIGN KEY (shop_id) REFERENCES shops(id)" +
+                ")");
+        stmt.execute("CREATE INDEX deals_shop ON deals (shop_id, id)");
+    }
+
+    private static void createTablesV4(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE shops (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "world TEXT NOT NULL," +
+                "x INT NOT NULL," +
+                "y INT NOT NULL," +
+                "z INT NOT NULL," +
+                "owner TEXT NOT NULL," +
+                "is_admin INT NOT NULL DEFAULT 0," +
+                "name TEXT NOT NULL DEFAULT ''" +
+                ")");
+        stmt.execute("CREATE UNIQUE INDEX shops_location ON shops (world, x, y, z)");
+        stmt.execute("CREATE TABLE deals (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "shop_id INTEGER NOT NULL," +
+                "item TEXT NOT NULL," +
+                "buy_price TEXT," +
+                "sell_price TEXT," +
+                "FOREIGN KEY (shop_id) REFERENCES shops(id)" +
+                ")");
+        // covers both deal lookups by shop and the per-shop ordering, so neither needs a table scan or a sort
+        stmt.execute("CREATE INDEX deals_shop ON deals (shop_id, id)");
+    }
+
+}
@@ -0,0 +1,418 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+// Append-only record of completed trades, written by a background thread as fixed-size records into memory-mapped
+// segment files. A segment is named after the time of its first trade, so a scan only maps the segments that overlap
+// its range and binary searches within them.
+public class TradeLedger implements Runnable {
+    public static final byte BUY = 1; // the player bought from the shop
+    public static final byte SELL = 2; // the player sold to the shop
+
+    /*
+     * Record layout, 64 bytes, big-endian:
+     *  0 time          8 type, 3 unused, world id     16 x, y, z, quantity
+     * 32 player uuid  48 item fingerprint             56 price, currency fingerprint
+     * The time is written last, so a zero time marks the end of the written part of a segment.
+     */
+    static final int RECORD_SIZE = 64;
+    private static final String PREFIX = "trades-";
+    private static final String SUFFIX = ".seg";
+    private static final long FORCE_INTERVAL = 1000;
+
+    public static class Trade {
+        final long time;
+        final byte type;
+        final ShopLocation shop;
+        final UUID player;
+        final long item;
+        final int quantity;
+        final int price;
+        final int currency;
+
+        public Trade(long time, byte type, ShopLocation shop, UUID player, long item, int quantity, int price,
+                     int currency) {
+            this.time = time;
+            this.type = type;
+            this.shop = shop;
+            this.player = player;
+            this.item = item;
+            this.quantity = quantity;
+            this.price = price;
+            this.currency = currency;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public ShopLocation getShop() {
+            return shop;
+        }
+
+        public UUID getPlayer() {
+            return player;
+        }
+
+        // see TradeLedger.fingerprint
+        public long getItem() {
+            return item;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        public int getCurrency() {
+            return currency;
+        }
+    }
+
+    public interface Visitor {
+        // false stops the scan
+        boolean visit(Trade trade);
+    }
+
+    private static TradeLedger instance;
+
+    private final Plugin plugin;
+    private final File dir;
+    private final File worldsFile;
+    private final int capacity; // records per segment
+    private final long keepMillis;
+    private final BlockingQueue<Trade> queue;
+    private final Map<String, Integer> worldIds = new ConcurrentHashMap<>();
+    private final List<String> worlds = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private Thread thread;
+
+    // writer thread only
+    private MappedByteBuffer segment;
+    private int position;
+    private long lastTime;
+    private long lastForce;
+    private boolean unforced;
+
+    // published for readers of the active segment
+    private volatile File activeFile;
+    private volatile int committed;
+
+    public static void init(Plugin plugin) {
+        if (instance != null) throw new RuntimeException("TradeLedger is already initialized");
+        if (!plugin.getConfig().getBoolean("ledger", true)) return;
+        TradeLedger ledger = new TradeLedger(plugin);
+        try {
+            ledger.open();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Couldn't open the trade ledger, trades won't be recorded", e);
+            return;
+        }
+        ledger.start();
+        instance = ledger;
+    }
+
+    // null if the ledger is disabled
+    public static TradeLedger getInstance() {
+        return instance;
+    }
+
+    public static void cleanup() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    // never blocks; if the writer has fallen far behind, the trade is dropped and counted
+    public static void record(byte type, ShopLocation shop, UUID player, ItemStack item, ItemStack price) {
+        record(type, shop, player, item, item.getAmount(), price, price.getAmount());
+    }
+
+    // a bulk trade as one record, the amounts of the item and price as given instead of the stacks'
+    public static void record(byte type, ShopLocation shop, UUID player, ItemStack item, int quantity,
+                              ItemStack price, int amount) {
+        TradeLedger ledger = instance;
+        if (ledger == null) return;
+        Trade trade = new Trade(System.currentTimeMillis(), type, shop, player, fingerprint(item), quantity, amount,
+                currencyFingerprint(price));
+        if (!ledger.queue.offer(trade)) ledger.dropped.incrementAndGet();
+    }
+
+    // the item regardless of stack size, stable across restarts so it matches fingerprints in old segments
+    public static long fingerprint(ItemStack item) {
+        long h = item.getType().name().hashCode();
+        h = h * 31 + item.getDurability();
+        int meta = item.hasItemMeta() ? item.getItemMeta().hashCode() : 0;
+        return h << 32 ^ (meta & 0xFFFFFFFFL);
+    }
+
+    // the price item's fingerprint folded into the record's currency field
+    public static int currencyFingerprint(ItemStack price) {
+        long h = fingerprint(price);
+        return (int) (h ^ h >>> 32);
+    }
+
+    private TradeLedger(Plugin plugin) {
+        this.plugin = plugin;
+        this.dir = new File(plugin.getDataFolder(), "ledger");
+        this.worldsFile = new File(dir, "worlds.txt");
+        this.capacity = Math.max(1, plugin.getConfig().getInt("ledger-segment-size", 16)) * (1 << 20) / RECORD_SIZE;
+        this.keepMillis = TimeUnit.DAYS.toMillis(plugin.getConfig().getInt("ledger-keep-days", 0));
+        this.queue = new ArrayBlockingQueue<>(plugin.getConfig().getInt("ledger-queue-size", 8192));
+    }
+
+    private void open() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Couldn't create " + dir);
+        if (worldsFile.exists()) {
+            for (String world : Files.readAllLines(worldsFile.toPath(), StandardCharsets.UTF_8)) {
+                if (world.isEmpty()) continue;
+                worldIds.put(world, worlds.size());
+                worlds.add(world);
+            }
+        }
+        File[] segments = listSegments();
+        if (segments.length == 0) return;
+        File last = segments[segments.length - 1];
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(last.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        int records = (int) (buf.capacity() / RECORD_SIZE);
+        int end = findEnd(buf, records);
+        // new segments must not start before the last recorded trade, whether or not this one is resumed
+        lastTime = Math.max(segmentStart(last), end == 0 ? 0 : buf.getLong((end - 1) * RECORD_SIZE));
+        // pick up where the last run left off unless the segment size changed; a full one rotates on the next trade
+        if (records != capacity) return;
+        segment = buf;
+        position = end;
+        committed = position;
+        activeFile = last;
+    }
+
+    private void start() {
+        running = true;
+        thread = new Thread(this, "FancyShop-Ledger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void shutdown() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (segment != null) segment.force();
+        if (dropped.get() > 0) {
+            plugin.getLogger().warning(dropped.get() + " trades were not recorded because the ledger fell behind");
+        }
+    }
+
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            Trade trade;
+            try {
+                trade = queue.poll(250, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (trade != null) append(trade);
+                if (unforced && (trade == null || System.currentTimeMillis() - lastForce > FORCE_INTERVAL)) {
+                    segment.force();
+                    lastForce = System.currentTimeMillis();
+                    unforced = false;
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Couldn't write to the trade ledger", e);
+            }
+        }
+    }
+
+    private void append(Trade trade) throws IOException {
+        // keep times ordered within and across segments even if the clock steps back
+        long time = Math.max(trade.time, lastTime);
+        if (segment == null || position == capacity) rotate(time);
+        int world = worldId(trade.shop.getWorld());
+        int offset = position * RECORD_SIZE;
+        segment.put(offset + 8, trade.type);
+        segment.putInt(offset + 12, world);
+        segment.putInt(offset + 16, trade.shop.getX());
+        segment.putInt(offset + 20, trade.shop.getY());
+        segment.putInt(offset + 24, trade.shop.getZ());
+        segment.putInt(offset + 28, trade.quantity);
+        segment.putLong(offset + 32, trade.player.getMostSignificantBits());
+        segment.putLong(offset + 40, trade.player.getLeastSignificantBits());
+        segment.putLong(offset + 48, trade.item);
+        segment.putInt(offset + 56, trade.price);
+        segment.putInt(offset + 60, trade.currency);
+        segment.putLong(offset, time);
+        lastTime = time;
+        committed = ++position;
+        unforced = true;
+    }
+
+    private void rotate(long start) throws IOException {
+        if (segment != null) segment.force();
+        File file = new File(dir, segmentName(start));
+        while (file.exists()) file = new File(dir, segmentName(++start));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+        }
+        position = 0;
+        committed = 0;
+        activeFile = file;
+        if (keepMillis > 0) prune(start - keepMillis);
+    }
+
+    // deletes segments whose trades are all older than the cutoff
+    private void prune(long cutoff) {
+        File[] segments = listSegments();
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segmentStart(segments[i + 1]) > cutoff) break;
+            if (!segments[i].delete()) plugin.getLogger().warning("Couldn't delete old ledger segment " + segments[i]);
+        }
+    }
+
+    private int worldId(String world) throws IOException {
+        Integer id = worldIds.get(world);
+        if (id != null) return id;
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(worldsFile, true), StandardCharsets.UTF_8)) {
+            out.write(world + "\n");
+        }
+        worlds.add(world);
+        worldIds.put(world, worlds.size() - 1);
+        return worlds.size() - 1;
+    }
+
+    // the trades between from and to (inclusive, millis) in time order, optionally at one shop only. Segments are
+    // mapped, so only the pages visited are read; safe from any thread, but it does disk I/O
+    public int scan(long from, long to, ShopLocation shop, Visitor visitor) throws IOException {
+        int world = -1;
+        if (shop != null) {
+            Integer id = worldIds.get(shop.getWorld());
+            if (id == null) return 0;
+            world = id;
+        }
+        File active = activeFile;
+        int activeCommitted = committed;
+        File[] segments = listSegments();
+        int count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (segmentStart(segments[i]) > to) break;
+            if (i + 1 < segments.length && segmentStart(segments[i + 1]) < from) continue;
+            ByteBuffer buf;
+            try (FileChannel channel = FileChannel.open(segments[i].toPath(), StandardOpenOption.READ)) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                if (!segments[i].exists()) continue; // pruned while we were looking
+                throw e;
+            }
+            int records = (int) (buf.capacity() / RECORD_SIZE);
+            int end = segments[i].equals(active) ? Math.min(activeCommitted, records) : findEnd(buf, records);
+            for (int r = findFirst(buf, end, from); r < end; r++) {
+                int offset = r * RECORD_SIZE;
+                long time = buf.getLong(offset);
+                if (time > to) return count;
+                if (shop != null && (buf.getInt(offset + 12) != world || buf.getInt(offset + 16) != shop.getX() ||
+                        buf.getInt(offset + 20) != shop.getY() || buf.getInt(offset + 24) != shop.getZ())) continue;
+                count++;
+                if (!visitor.visit(readTrade(buf, offset, time))) return count;
+            }
+        }
+        return count;
+    }
+
+    private Trade readTrade(ByteBuffer buf, int offset, long time) {
+        int worldId = buf.getInt(offset + 12);
+        String world = worldId < worlds.size() ? worlds.get(worldId) : "?";
+        ShopLocation location = new ShopLocation(world, buf.getInt(offset + 16), buf.getInt(offset + 20),
+                buf.getInt(offset + 24));
+        UUID player = new UUID(buf.getLong(offset + 32), buf.getLong(offset + 40));
+        return new Trade(time, buf.get(offset + 8), location, player, buf.getLong(offset + 48),
+                buf.getInt(offset + 28), buf.getInt(offset + 56), buf.getInt(offset + 60));
+    }
+
+    // the number of written records, i.e. the first record with a zero time
+    private static int findEnd(ByteBuffer buf, int records) {
+        int lo = 0, hi = records;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buf.getLong(mid * RECORD_SIZE) != 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // the first record at or after the given time
+    private static int findFirst(ByteBuffer buf, int end, long from) {
+        int lo = 0, hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buf.getLong(mid * RECORD_SIZE) < from) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private File[] listSegments() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files); // names are zero-padded, so this is time order
+        return files;
+    }
+
+    private static String segmentName(long start) {
+        return PREFIX + String.format("%015d", start) + SUFFIX;
+    }
+
+    private static long segmentStart(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
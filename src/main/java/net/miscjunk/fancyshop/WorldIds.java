@@ -0,0 +1,33 @@
+package net.miscjunk.fancyshop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Small integer ids for world names, kept until the server stops, so position lookups can index tables by world instead
+// of hashing the name into every key.
+public class WorldIds {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final List<String> names = new ArrayList<>();
+
+    public static int id(String world) {
+        Integer id = ids.get(world);
+        if (id != null) return id;
+        synchronized (names) {
+            id = ids.get(world);
+            if (id == null) {
+                id = names.size();
+                names.add(world);
+                ids.put(world, id);
+            }
+            return id;
+        }
+    }
+
+    public static String name(int id) {
+        synchronized (names) {
+            return names.get(id);
+        }
+    }
+}
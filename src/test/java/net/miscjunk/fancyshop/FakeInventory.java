@@ -0,0 +1,119 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// a chest without a server: addItem and removeItem fill and empty slots in the same order CraftBukkit does
+class FakeInventory implements InvocationHandler {
+    ItemStack[] slots;
+    final List<HumanEntity> viewers = new ArrayList<>();
+
+    private FakeInventory(int size) {
+        slots = new ItemStack[size];
+    }
+
+    static Inventory chest(int size) {
+        return (Inventory) Proxy.newProxyInstance(FakeInventory.class.getClassLoader(),
+                new Class<?>[] {Inventory.class}, new FakeInventory(size));
+    }
+
+    static PlayerInventory player() {
+        return (PlayerInventory) Proxy.newProxyInstance(FakeInventory.class.getClassLoader(),
+                new Class<?>[] {PlayerInventory.class}, new FakeInventory(36));
+    }
+
+    static FakeInventory of(Inventory inv) {
+        return (FakeInventory) Proxy.getInvocationHandler(inv);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getSize":
+                return slots.length;
+            case "getMaxStackSize":
+                return 64;
+            case "getItem":
+                return slots[(Integer) args[0]];
+            case "setItem":
+                slots[(Integer) args[0]] = (ItemStack) args[1];
+                return null;
+            case "getContents":
+            case "getStorageContents":
+                return slots.clone();
+            case "addItem":
+                return add((ItemStack[]) args[0]);
+            case "removeItem":
+                return remove((ItemStack[]) args[0]);
+            case "getViewers":
+                return viewers;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "FakeInventory" + Arrays.toString(slots);
+            default:
+                return null;
+        }
+    }
+
+    private HashMap<Integer, ItemStack> add(ItemStack[] items) {
+        HashMap<Integer, ItemStack> overflow = new HashMap<>();
+        for (int i = 0; i < items.length; i++) {
+            ItemStack item = items[i];
+            int left = item.getAmount();
+            int max = Math.min(64, item.getMaxStackSize());
+            for (int s = 0; s < slots.length && left > 0; s++) {
+                if (slots[s] != null && slots[s].isSimilar(item) && slots[s].getAmount() < max) {
+                    int moved = Math.min(left, max - slots[s].getAmount());
+                    slots[s].setAmount(slots[s].getAmount() + moved);
+                    left -= moved;
+                }
+            }
+            for (int s = 0; s < slots.length && left > 0; s++) {
+                if (slots[s] == null) {
+                    int moved = Math.min(left, max);
+                    slots[s] = item.clone();
+                    slots[s].setAmount(moved);
+                    left -= moved;
+                }
+            }
+            if (left > 0) {
+                item.setAmount(left);
+                overflow.put(i, item);
+            }
+        }
+        return overflow;
+    }
+
+    private HashMap<Integer, ItemStack> remove(ItemStack[] items) {
+        HashMap<Integer, ItemStack> missing = new HashMap<>();
+        for (int i = 0; i < items.length; i++) {
+            ItemStack item = items[i];
+            int left = item.getAmount();
+            for (int s = 0; s < slots.length && left > 0; s++) {
+                if (slots[s] != null && slots[s].isSimilar(item)) {
+                    int taken = Math.min(left, slots[s].getAmount());
+                    slots[s].setAmount(slots[s].getAmount() - taken);
+                    if (slots[s].getAmount() == 0) slots[s] = null;
+                    left -= taken;
+                }
+            }
+            if (left > 0) {
+                item.setAmount(left);
+                missing.put(i, item);
+            }
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,112 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.Chest;
+import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.Inventory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// The event handlers have to rule out blocks and inventories that can't be a shop before taking a block snapshot or
+// resolving where an inventory is.
+public class FancyShopTest {
+    private ShopIndex index;
+    private World world;
+    private int lookups;
+
+    @Before
+    public void setUp() {
+        TestServer.start();
+        world = TestServer.proxy(World.class, (method, args) ->
+                method.getName().equals("getName") ? "world" : TestServer.none(method));
+        // a double chest shop is stored at its half with the lower x or z
+        index = new ShopIndex(Collections.singletonList(new ShopLocation("world", 10, 64, 10)));
+    }
+
+    @Test
+    public void blocksAwayFromShopsAreRejectedBeforeGetState() {
+        int[][] away = {{9, 64, 10}, {10, 64, 9}, {12, 64, 10}, {11, 64, 11}, {10, 65, 10}, {-10, 64, -10}};
+        for (int[] p : away) {
+            assertFalse(FancyShop.mayBeShop(index, block(p[0], p[1], p[2])));
+        }
+        assertFalse(FancyShop.mayBeShop(index, (Block) null));
+        assertEquals(0, lookups);
+    }
+
+    @Test
+    public void shopBlocksAndTheirOtherHalfAreChecked() {
+        int[][] near = {{10, 64, 10}, {11, 64, 10}, {10, 64, 11}};
+        for (int[] p : near) {
+            assertTrue(FancyShop.mayBeShop(index, block(p[0], p[1], p[2])));
+        }
+        assertEquals(near.length, lookups);
+    }
+
+    @Test
+    public void playerInventoriesAreRejectedBeforeGetLocation() {
+        InventoryType[] types = {InventoryType.PLAYER, InventoryType.CRAFTING, InventoryType.CREATIVE,
+                InventoryType.WORKBENCH, InventoryType.ENDER_CHEST, InventoryType.MERCHANT};
+        for (InventoryType type : types) {
+            assertFalse(type.name(), FancyShop.mayBeShop(index, inventory(type, 10, 64, 10)));
+        }
+        assertEquals(0, lookups);
+    }
+
+    @Test
+    public void containersAreRejectedAwayFromShops() {
+        assertFalse(FancyShop.mayBeShop(index, inventory(InventoryType.CHEST, 20, 64, 20)));
+        assertFalse(FancyShop.mayBeShop(index, inventory(InventoryType.HOPPER, 10, 63, 10)));
+        assertTrue(FancyShop.mayBeShop(index, inventory(InventoryType.CHEST, 11, 64, 10)));
+        assertTrue(FancyShop.mayBeShop(index, inventory(InventoryType.HOPPER, 10, 64, 10)));
+    }
+
+    @Test
+    public void onlyContainerBlocksCanHoldStock() {
+        assertFalse(FancyShop.isContainer(null));
+        assertFalse(FancyShop.isContainer(TestServer.proxy(Player.class, (method, args) -> TestServer.none(method))));
+        assertTrue(FancyShop.isContainer(TestServer.proxy(Chest.class, (method, args) -> TestServer.none(method))));
+    }
+
+    private Block block(final int x, final int y, final int z) {
+        return TestServer.proxy(Block.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getWorld":
+                    return world;
+                case "getX":
+                    return x;
+                case "getY":
+                    return y;
+                case "getZ":
+                    return z;
+                case "getState":
+                    lookups++;
+                    return TestServer.proxy(Chest.class, (m, a) -> TestServer.none(m));
+                default:
+                    return TestServer.none(method);
+            }
+        });
+    }
+
+    private Inventory inventory(final InventoryType type, final int x, final int y, final int z) {
+        return TestServer.proxy(Inventory.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getType":
+                    return type;
+                case "getLocation":
+                    lookups++;
+                    return new Location(world, x, y, z);
+                default:
+                    return TestServer.none(method);
+            }
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.Damageable;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Items have to come back from the database as they went in, whether they were stored in the binary format or in the
+// YAML text older versions wrote, which is still read for deals nobody has changed since.
+public class ItemCodecTest {
+    private static final String LOREM = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor " +
+            "incididunt ut labore et dolore magna aliqua.";
+
+    private List<ItemStack> items;
+
+    @Before
+    public void setUp() {
+        TestServer.start();
+        items = new ArrayList<>();
+        items.add(new ItemStack(Material.DIAMOND, 5));
+        items.add(new ItemStack(Material.COBBLESTONE, 64));
+
+        ItemStack sword = new ItemStack(Material.DIAMOND_SWORD, 1);
+        ItemMeta meta = sword.getItemMeta();
+        meta.addEnchant(Enchantment.DAMAGE_ALL, 5, true);
+        meta.addEnchant(Enchantment.DURABILITY, 3, true);
+        ((Damageable) meta).setDamage(120);
+        sword.setItemMeta(meta);
+        items.add(sword);
+
+        // a name, enchantments and a long lore, as big as deal items get
+        ItemStack book = new ItemStack(Material.WRITTEN_BOOK, 1);
+        meta = book.getItemMeta();
+        meta.setDisplayName(ChatColor.GOLD + "The " + ChatColor.BOLD + "Great" + ChatColor.RESET + " B\u00fcch \u2603");
+        List<String> lore = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            lore.add(ChatColor.GRAY + "" + i + ". " + LOREM);
+        }
+        meta.setLore(lore);
+        meta.addEnchant(Enchantment.LOOT_BONUS_MOBS, 10, true);
+        book.setItemMeta(meta);
+        items.add(book);
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        for (ItemStack item : items) {
+            byte[] data = ItemCodec.encode(item);
+            assertFalse(ItemCodec.isLegacy(data));
+            assertSameItem(item, ItemCodec.decode(data));
+        }
+    }
+
+    @Test
+    public void legacyYamlIsStillRead() {
+        for (ItemStack item : items) {
+            String text = CurrencyManager.itemToString(item);
+            assertSameItem(item, CurrencyManager.stringToItem(text));
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            assertTrue(ItemCodec.isLegacy(data));
+            assertSameItem(item, ItemCodec.decode(data));
+        }
+    }
+
+    @Test
+    public void emptyAndUnknownValues() {
+        assertNull(ItemCodec.encode(null));
+        assertNull(ItemCodec.decode(null));
+        byte[] data = ItemCodec.encode(items.get(0));
+        // a format version this build doesn't know
+        data[1] = 99;
+        assertNull(ItemCodec.decode(data));
+        // cut off in the middle of the item
+        assertNull(ItemCodec.decode(Arrays.copyOf(ItemCodec.encode(items.get(3)), 40)));
+    }
+
+    private static void assertSameItem(ItemStack expected, ItemStack actual) {
+        assertTrue(expected + " came back as " + actual, expected.isSimilar(actual));
+        assertEquals(expected.getAmount(), actual.getAmount());
+        assertEquals(expected.getItemMeta(), actual.getItemMeta());
+    }
+}
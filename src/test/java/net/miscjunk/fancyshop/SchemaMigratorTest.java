@@ -0,0 +1,335 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SchemaMigratorTest {
+    private static final int SHOPS = 50000;
+    private static final int OWNERS = 500;
+    private static final int ROWS = 10 * SchemaMigrator.CHUNK_SIZE + 17;
+    private static final Material[] ITEMS = {Material.DIAMOND, Material.COBBLESTONE, Material.ENDER_PEARL};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File data;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.start();
+        Class.forName("org.sqlite.JDBC");
+        data = folder.newFolder("FancyShop");
+        TestServer.setWorldContainer(folder.getRoot());
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + new File(data, "shops.db").getAbsolutePath());
+    }
+
+    @Test
+    public void upgradesLegacyDatabase() throws Exception {
+        int deals = createLegacyDatabase();
+        writeUserCache();
+
+        SqliteShopStore store = new SqliteShopStore(TestServer.plugin(data));
+        store.open();
+        try {
+            assertEquals(SHOPS, store.locations().size());
+        } finally {
+            store.close();
+        }
+
+        try (Connection db = connect(); Statement stmt = db.createStatement()) {
+            assertEquals(6, queryLong(stmt, "PRAGMA user_version"));
+            assertEquals(SHOPS, queryLong(stmt, "SELECT COUNT(*) FROM shops"));
+            assertEquals(deals, queryLong(stmt, "SELECT COUNT(*) FROM deals"));
+            assertEquals(0, queryLong(stmt, "SELECT COUNT(*) FROM sqlite_master WHERE name IN " +
+                    "('migration_progress', 'shops_v3', 'deals_v3', 'deals_v4')"));
+            PreparedStatement shop = db.prepareStatement("SELECT id, owner, name, cx, cz FROM shops " +
+                    "WHERE world=? AND x=? AND y=? AND z=?");
+            PreparedStatement deal = db.prepareStatement("SELECT item, buy_price, sell_price FROM deals " +
+                    "WHERE shop_id=? ORDER BY id");
+            for (int i = 0; i < SHOPS; i += 997) {
+                ShopLocation l = location(i);
+                shop.setString(1, l.getWorld());
+                shop.setInt(2, l.getX());
+                shop.setInt(3, l.getY());
+                shop.setInt(4, l.getZ());
+                ResultSet rs = shop.executeQuery();
+                assertTrue("shop " + i, rs.next());
+                long id = rs.getLong(1);
+                assertEquals("owner of shop " + i, ownerId(i % OWNERS).toString(), rs.getString(2));
+                assertEquals(ownerName(i % OWNERS) + "'s Shop", rs.getString(3));
+                assertEquals(l.getX() >> 4, rs.getInt(4));
+                assertEquals(l.getZ() >> 4, rs.getInt(5));
+                rs.close();
+
+                deal.setLong(1, id);
+                rs = deal.executeQuery();
+                assertTrue(rs.next());
+                assertItem(item(i), rs.getBytes(1));
+                assertItem(price(i), rs.getBytes(2));
+                assertEquals(null, rs.getBytes(3));
+                assertEquals(i % 10 == 0, rs.next());
+                rs.close();
+            }
+            shop.close();
+            deal.close();
+        }
+    }
+
+    @Test
+    public void resumesInterruptedStep() throws Exception {
+        createSource();
+        try (Connection db = connect()) {
+            try {
+                new SchemaMigrator(db, Logger.getLogger("test")).run(new CopyStep(3, false));
+                fail("step wasn't interrupted");
+            } catch (SQLException expected) {
+            }
+        }
+        assertInterrupted(3);
+
+        CopyStep step = new CopyStep(-1, false);
+        try (Connection db = connect()) {
+            new SchemaMigrator(db, Logger.getLogger("test")).run(step);
+        }
+        assertFalse("resumed step started again", step.begun);
+        assertFinished();
+    }
+
+    @Test
+    public void rollsBackChunkOnRuntimeException() throws Exception {
+        createSource();
+        try (Connection db = connect()) {
+            try {
+                new SchemaMigrator(db, Logger.getLogger("test")).run(new CopyStep(5, true));
+                fail("step wasn't interrupted");
+            } catch (IllegalStateException expected) {
+            }
+        }
+        assertInterrupted(5);
+
+        try (Connection db = connect()) {
+            new SchemaMigrator(db, Logger.getLogger("test")).run(new CopyStep(-1, false));
+        }
+        assertFinished();
+    }
+
+    // the layout version 1 created; version 0 is a database without tables
+    private int createLegacyDatabase() throws SQLException {
+        String[] items = new String[ITEMS.length * 64];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = CurrencyManager.itemToString(new ItemStack(ITEMS[i % ITEMS.length], i / ITEMS.length + 1));
+        }
+        String[] prices = new String[10];
+        for (int i = 0; i < prices.length; i++) {
+            prices[i] = CurrencyManager.itemToString(new ItemStack(Material.EMERALD, i + 1));
+        }
+        int deals = 0;
+        try (Connection db = connect(); Statement stmt = db.createStatement()) {
+            stmt.execute("CREATE TABLE shops (location TEXT NOT NULL, owner TEXT NOT NULL, PRIMARY KEY (location))");
+            stmt.execute("CREATE TABLE deals (id INTEGER PRIMARY KEY AUTOINCREMENT, shop_id INT NOT NULL, " +
+                    "item TEXT NOT NULL, buy_price TEXT, sell_price TEXT, " +
+                    "FOREIGN KEY (shop_id) REFERENCES shops(location))");
+            stmt.execute("PRAGMA user_version=1");
+            db.setAutoCommit(false);
+            PreparedStatement shop = db.prepareStatement("INSERT INTO shops (location, owner) VALUES (?, ?)");
+            PreparedStatement deal = db.prepareStatement("INSERT INTO deals (shop_id, item, buy_price) VALUES (?, ?, ?)");
+            for (int i = 0; i < SHOPS; i++) {
+                String location = location(i).toString();
+                shop.setString(1, location);
+                shop.setString(2, ownerName(i % OWNERS));
+                shop.addBatch();
+                deal.setString(1, location);
+                deal.setString(2, items[i % items.length]);
+                deal.setString(3, prices[i % prices.length]);
+                deal.addBatch();
+                deals++;
+                if (i % 10 == 0) {
+                    deal.setString(2, items[(i + 1) % items.length]);
+                    deal.setString(3, null);
+                    deal.addBatch();
+                    deals++;
+                }
+            }
+            shop.executeBatch();
+            deal.executeBatch();
+            db.commit();
+            shop.close();
+            deal.close();
+        }
+        return deals;
+    }
+
+    // every other owner is in the user cache, the rest are looked up one by one
+    private void writeUserCache() throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < OWNERS; i += 2) {
+            if (i > 0) json.append(',');
+            json.append("{\"name\":\"").append(ownerName(i).toLowerCase()).append("\",\"uuid\":\"")
+                    .append(ownerId(i)).append("\",\"expiresOn\":\"2099-01-01 00:00:00 +0000\"}");
+        }
+        json.append(']');
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(
+                new File(folder.getRoot(), "usercache.json").toPath()), StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+    }
+
+    private void createSource() throws SQLException {
+        try (Connection db = connect(); Statement stmt = db.createStatement()) {
+            stmt.execute("CREATE TABLE source (id INTEGER PRIMARY KEY, value TEXT NOT NULL)");
+            db.setAutoCommit(false);
+            PreparedStatement insert = db.prepareStatement("INSERT INTO source (id, value) VALUES (?, ?)");
+            for (int i = 1; i <= ROWS; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, "row " + i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            db.commit();
+            insert.close();
+        }
+    }
+
+    private void assertInterrupted(int chunks) throws SQLException {
+        try (Connection db = connect(); Statement stmt = db.createStatement()) {
+            assertEquals(0, queryLong(stmt, "PRAGMA user_version"));
+            assertEquals(chunks * SchemaMigrator.CHUNK_SIZE, queryLong(stmt, "SELECT COUNT(*) FROM target"));
+            assertEquals(chunks * SchemaMigrator.CHUNK_SIZE,
+                    queryLong(stmt, "SELECT position FROM migration_progress WHERE version=1"));
+        }
+    }
+
+    private void assertFinished() throws SQLException {
+        try (Connection db = connect(); Statement stmt = db.createStatement()) {
+            assertEquals(1, queryLong(stmt, "PRAGMA user_version"));
+            assertEquals(ROWS, queryLong(stmt, "SELECT COUNT(*) FROM target"));
+            assertEquals(0, queryLong(stmt, "SELECT COUNT(*) FROM source s LEFT JOIN target t ON t.id = s.id " +
+                    "WHERE t.value IS NOT s.value"));
+            assertEquals(0, queryLong(stmt, "SELECT COUNT(*) FROM sqlite_master WHERE name='migration_progress'"));
+        }
+    }
+
+    // copies source into a new table, failing after the given number of chunks with the next chunk half done
+    private static class CopyStep extends SchemaMigrator.Step {
+        private final int failAfter;
+        private final boolean runtime;
+        private int chunks;
+        boolean begun;
+        private PreparedStatement select;
+        private PreparedStatement insert;
+
+        CopyStep(int failAfter, boolean runtime) {
+            super(1, "rows");
+            this.failAfter = failAfter;
+            this.runtime = runtime;
+        }
+
+        void begin(Connection db) throws SQLException {
+            begun = true;
+            Statement stmt = db.createStatement();
+            stmt.execute("CREATE TABLE target (id INTEGER PRIMARY KEY, value TEXT NOT NULL)");
+            stmt.close();
+        }
+
+        void prepare(Connection db) throws SQLException {
+            select = db.prepareStatement("SELECT id, value FROM source WHERE id > ? ORDER BY id LIMIT ?");
+            insert = db.prepareStatement("INSERT INTO target (id, value) VALUES (?, ?)");
+        }
+
+        long remaining(Connection db) throws SQLException {
+            return count(db, "SELECT COUNT(*) FROM source WHERE id > ?", position);
+        }
+
+        int migrate(int limit) throws SQLException {
+            select.setLong(1, position);
+            select.setInt(2, limit);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                position = rs.getLong(1);
+                insert.setLong(1, position);
+                insert.setString(2, rs.getString(2));
+                insert.addBatch();
+                count++;
+            }
+            rs.close();
+            insert.executeBatch();
+            if (chunks++ == failAfter) {
+                if (runtime) throw new IllegalStateException("interrupted");
+                throw new SQLException("interrupted");
+            }
+            return count;
+        }
+
+        void close() throws SQLException {
+            if (select != null) select.close();
+            if (insert != null) insert.close();
+        }
+    }
+
+    private static ShopLocation location(int i) {
+        return new ShopLocation("world", i % 1000 * 3 - 1500, 64, i / 1000 * 3 - 75);
+    }
+
+    private static String ownerName(int owner) {
+        return "Player" + owner;
+    }
+
+    private static UUID ownerId(int owner) {
+        if (owner % 2 == 0) return new UUID(0x46534c47, owner); // the cached ones
+        return TestServer.offlineId(ownerName(owner));
+    }
+
+    private static ItemStack item(int shop) {
+        int i = shop % (ITEMS.length * 64);
+        return new ItemStack(ITEMS[i % ITEMS.length], i / ITEMS.length + 1);
+    }
+
+    private static ItemStack price(int shop) {
+        return new ItemStack(Material.EMERALD, shop % 10 + 1);
+    }
+
+    private static void assertItem(ItemStack expected, byte[] data) {
+        assertNotNull(data);
+        assertFalse("still in the YAML format", ItemCodec.isLegacy(data));
+        ItemStack item = ItemCodec.decode(data);
+        assertNotNull(item);
+        assertEquals(expected.getType(), item.getType());
+        assertEquals(expected.getAmount(), item.getAmount());
+    }
+
+    private static long queryLong(Statement stmt, String sql) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(sql)) {
+            assertTrue(rs.next());
+            return rs.getLong(1);
+        }
+    }
+}
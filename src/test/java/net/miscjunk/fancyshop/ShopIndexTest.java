@@ -0,0 +1,134 @@
+package net.miscjunk.fancyshop;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Area queries have to find exactly the shops a scan of every location would, at chunk edges, negative coordinates and
+// the ends of the packed range, whichever way within walks the buckets.
+public class ShopIndexTest {
+    private static final String WORLD = "world";
+
+    private Set<ShopLocation> shops;
+    private ShopIndex index;
+
+    @Before
+    public void setUp() {
+        shops = new LinkedHashSet<>(Arrays.asList(
+                // both sides of the chunk borders at 0 and 16
+                at(-1, 64, -1), at(0, 64, 0), at(15, 64, 15), at(16, 64, 16),
+                at(-16, 64, 0), at(-17, 64, 0),
+                // the lowest and highest y a chunk has
+                at(5, 0, 5), at(5, 255, 5),
+                // near the world border, where x and z use all of their bits
+                at(-29999999, 64, 29999999), at(29999999, 64, -29999999)));
+        Random random = new Random(15);
+        for (int i = 0; i < 500; i++) {
+            shops.add(at(random.nextInt(400) - 200, 40 + random.nextInt(40), random.nextInt(400) - 200));
+        }
+        index = new ShopIndex(shops);
+        // the same block in another world
+        index.add(new ShopLocation("world_nether", 0, 64, 0));
+    }
+
+    @Test
+    public void addAndRemoveKeepTheSize() {
+        int size = index.size();
+        index.add(at(0, 64, 0));
+        assertEquals(size, index.size());
+        index.remove(at(0, 64, 0));
+        assertEquals(size - 1, index.size());
+        assertFalse(index.contains(at(0, 64, 0)));
+        assertTrue(index.contains(new ShopLocation("world_nether", 0, 64, 0)));
+        index.remove(at(0, 64, 0));
+        assertEquals(size - 1, index.size());
+    }
+
+    @Test
+    public void extremeCoordinatesAreFound() {
+        assertTrue(index.contains(WORLD, -29999999, 64, 29999999));
+        assertTrue(index.contains(WORLD, 29999999, 64, -29999999));
+        assertTrue(index.contains(WORLD, 5, 0, 5));
+        assertTrue(index.contains(WORLD, 5, 255, 5));
+        assertFalse(index.contains(WORLD, 5, 1, 5));
+        assertEquals(2, index.within(WORLD, 5, 0, 5, 5, 255, 5).size());
+        assertEquals(1, index.within(WORLD, -30000000, 0, 29999990, -29999990, 255, 30000000).size());
+    }
+
+    @Test
+    public void withinMatchesAScan() {
+        int[][] boxes = {
+                // bounds on a shop, on both sides of chunk borders
+                {0, 64, 0, 0, 64, 0}, {-1, 64, -1, 0, 64, 0}, {15, 0, 15, 16, 255, 16}, {-17, 64, 0, -16, 64, 0},
+                // one block off a shop
+                {1, 0, 1, 14, 255, 14}, {-15, 0, -15, -2, 255, -2},
+                // larger than the chunks with shops, so the buckets are visited instead
+                {-100000, 0, -100000, 100000, 255, 100000}, {-30000000, 0, -30000000, 30000000, 255, 30000000},
+                // nothing
+                {1000, 0, 1000, 2000, 255, 2000}};
+        for (int[] b : boxes) {
+            Set<ShopLocation> expected = new HashSet<>();
+            for (ShopLocation l : shops) {
+                if (l.getX() >= b[0] && l.getX() <= b[3] && l.getY() >= b[1] && l.getY() <= b[4]
+                        && l.getZ() >= b[2] && l.getZ() <= b[5]) {
+                    expected.add(l);
+                }
+            }
+            List<ShopLocation> found = index.within(WORLD, b[0], b[1], b[2], b[3], b[4], b[5]);
+            assertEquals(Arrays.toString(b), expected.size(), found.size());
+            assertEquals(Arrays.toString(b), expected, new HashSet<>(found));
+        }
+    }
+
+    @Test
+    public void nearIsSortedAndIncludesTheRadius() {
+        for (int radius : new int[] {0, 1, 16, 50, 300}) {
+            List<ShopLocation> found = index.near(WORLD, 0, 64, 0, radius);
+            int expected = 0;
+            for (ShopLocation l : shops) {
+                if (ShopIndex.distanceSquared(l, 0, 64, 0) <= (long) radius * radius) expected++;
+            }
+            assertEquals("radius " + radius, expected, found.size());
+            for (int i = 1; i < found.size(); i++) {
+                assertTrue(ShopIndex.distanceSquared(found.get(i - 1), 0, 64, 0)
+                        <= ShopIndex.distanceSquared(found.get(i), 0, 64, 0));
+            }
+        }
+        // exactly the radius away, and the box corner that isn't
+        ShopIndex small = new ShopIndex(Arrays.asList(at(100, 64, 110), at(110, 74, 110)));
+        List<ShopLocation> found = small.near(WORLD, 100, 64, 100, 10);
+        assertEquals(Arrays.asList(at(100, 64, 110)), found);
+        assertTrue(small.near("world_nether", 100, 64, 100, 10).isEmpty());
+    }
+
+    @Test
+    public void mayContainChecksTheOtherHalfOfADoubleChest() {
+        // stored at the half with the lower x or z, so only the blocks at x+1 and z+1 can be its other half
+        int[][] stored = {{10, 64, 10}, {15, 64, 31}, {-1, 64, -17}};
+        for (int[] s : stored) {
+            ShopIndex single = new ShopIndex(Arrays.asList(at(s[0], s[1], s[2])));
+            assertTrue(single.mayContain(WORLD, s[0], s[1], s[2]));
+            assertTrue(single.mayContain(WORLD, s[0] + 1, s[1], s[2]));
+            assertTrue(single.mayContain(WORLD, s[0], s[1], s[2] + 1));
+            assertFalse(single.mayContain(WORLD, s[0] - 1, s[1], s[2]));
+            assertFalse(single.mayContain(WORLD, s[0], s[1], s[2] - 1));
+            assertFalse(single.mayContain(WORLD, s[0] + 1, s[1], s[2] + 1));
+            assertFalse(single.mayContain(WORLD, s[0], s[1] + 1, s[2]));
+            assertFalse(single.mayContain("world_nether", s[0], s[1], s[2]));
+        }
+    }
+
+    private static ShopLocation at(int x, int y, int z) {
+        return new ShopLocation(WORLD, x, y, z);
+    }
+}
@@ -0,0 +1,261 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The stock and buying counts a shop keeps from trade deltas have to match what counting the whole chest, as shops
+// did before, gives.
+public class ShopStockTest {
+    private static final Material[] MATERIALS =
+            {Material.DIAMOND, Material.EMERALD, Material.GOLD_INGOT, Material.ENDER_PEARL, Material.COBBLESTONE};
+
+    private Random random;
+    private Inventory chest;
+    private Shop shop;
+    private View view;
+
+    // a view of the shop with the cursor kept here instead of on the player
+    private static class View extends InventoryView {
+        final Player player;
+        ItemStack cursor;
+
+        View(Player player) {
+            this.player = player;
+        }
+
+        public ItemStack getCursor() {
+            return cursor;
+        }
+
+        public void setCursor(ItemStack item) {
+            cursor = item;
+        }
+
+        public Inventory getTopInventory() {
+            return null;
+        }
+
+        public Inventory getBottomInventory() {
+            return player.getInventory();
+        }
+
+        public HumanEntity getPlayer() {
+            return player;
+        }
+
+        public InventoryType getType() {
+            return InventoryType.CHEST;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        TestServer.start();
+        random = new Random(18);
+        chest = FakeInventory.chest(27);
+        fill(chest, 0, 27, 0.6);
+        shop = new Shop(new ShopLocation("world", 0, 64, 0), chest, new UUID(0, 1), "Test", false);
+        // shared templates: emeralds are a price of three deals and the item of a fourth
+        addDeal(new ItemStack(Material.DIAMOND, 1), new ItemStack(Material.EMERALD, 2), new ItemStack(Material.EMERALD, 1));
+        addDeal(new ItemStack(Material.ENDER_PEARL, 4), new ItemStack(Material.EMERALD, 3),
+                new ItemStack(Material.GOLD_INGOT, 2));
+        addDeal(new ItemStack(Material.GOLD_INGOT, 8), new ItemStack(Material.DIAMOND, 1), null);
+        addDeal(new ItemStack(Material.EMERALD, 5), null, new ItemStack(Material.DIAMOND, 3));
+        addDeal(new ItemStack(Material.COBBLESTONE, 64), new ItemStack(Material.EMERALD, 1),
+                new ItemStack(Material.EMERALD, 1));
+        shop.refreshView();
+        view = new View(player(FakeInventory.player()));
+    }
+
+    @Test
+    public void tradesKeepCountsExact() {
+        int traded = 0;
+        for (int i = 0; i < 5000; i++) {
+            ItemStack[] before = copy(chest);
+            trade();
+            if (!Arrays.deepEquals(before, copy(chest))) traded++;
+            assertCounts("after trade " + i);
+        }
+        assertTrue("only " + traded + " trades went through", traded > 250);
+    }
+
+    @Test
+    public void hopperChangesAreCountedAfterInvalidation() {
+        boolean recount = false;
+        for (int i = 0; i < 5000; i++) {
+            if (random.nextInt(10) == 0) {
+                // a hopper moves items in or out, the listener only invalidates
+                fill(chest, 0, chest.getSize(), 0.1);
+                shop.invalidateStock();
+                recount = true;
+            }
+            ItemStack[] before = copy(chest);
+            trade();
+            // a trade that went through recounts, one that didn't leaves the counts as they were
+            if (!Arrays.deepEquals(before, copy(chest))) recount = false;
+            if (!recount) assertCounts("after trade " + i);
+        }
+    }
+
+    @Test
+    public void restockIsCountedOnRefresh() {
+        for (int i = 0; i < 500; i++) {
+            // the owner closes the chest after moving items in and out
+            fill(chest, 0, chest.getSize(), 0.3);
+            shop.refreshView();
+            assertCounts("after restock " + i);
+            for (int t = 0; t < 10; t++) {
+                trade();
+                assertCounts("after restock " + i + ", trade " + t);
+            }
+        }
+    }
+
+    @Test
+    public void doubleChestResizeIsCounted() {
+        for (int i = 0; i < 200; i++) {
+            // a second chest is placed next to the shop, then broken again; the halves are new inventories
+            Inventory both = FakeInventory.chest(54);
+            System.arraycopy(FakeInventory.of(chest).slots, 0, FakeInventory.of(both).slots, 0, 27);
+            fill(both, 27, 54, 0.7);
+            resize(both);
+            assertCounts("after growing " + i);
+            for (int t = 0; t < 10; t++) {
+                trade();
+                assertCounts("after growing " + i + ", trade " + t);
+            }
+
+            Inventory single = FakeInventory.chest(27);
+            System.arraycopy(FakeInventory.of(chest).slots, 0, FakeInventory.of(single).slots, 0, 27);
+            resize(single);
+            assertCounts("after shrinking " + i);
+            for (int t = 0; t < 10; t++) {
+                trade();
+                assertCounts("after shrinking " + i + ", trade " + t);
+            }
+        }
+    }
+
+    private void resize(Inventory inv) {
+        chest = inv;
+        shop.updateSourceInv(inv);
+        // the counts update with the next trade that goes through or the next refresh, whichever comes first has to
+        // see the new chest
+        if (random.nextBoolean()) {
+            ItemStack[] before = copy(chest);
+            for (int t = 0; t < 100; t++) {
+                trade();
+                if (!Arrays.deepEquals(before, copy(chest))) return;
+            }
+        }
+        shop.refreshView();
+    }
+
+    private void trade() {
+        Deal deal = shop.deals.get(random.nextInt(shop.deals.size()));
+        boolean buying = deal.hasBuyPrice() && (!deal.hasSellPrice() || random.nextBoolean());
+        ItemStack pay = buying ? deal.getBuyTemplate() : deal.getItemTemplate();
+        int max = Math.min(64, pay.getMaxStackSize());
+        view.cursor = ItemTemplates.stack(pay, 1 + random.nextInt(max));
+        // the player's inventory empties now and then so overflow doesn't always go on the ground
+        if (random.nextInt(20) == 0) Arrays.fill(FakeInventory.of(view.player.getInventory()).slots, null);
+        boolean all = random.nextInt(3) == 0;
+        if (buying) {
+            if (all) {
+                shop.buyAll(view.player, deal, view);
+            } else {
+                shop.buy(view.player, deal, view);
+            }
+        } else {
+            if (all) {
+                shop.sellAll(view.player, deal, view);
+            } else {
+                shop.sell(view.player, deal, view);
+            }
+        }
+    }
+
+    private void assertCounts(String when) {
+        for (Deal deal : shop.deals) {
+            int available = deal.hasBuyPrice() ? countItems(chest, deal.getItem()) : 0;
+            int buying = 0;
+            if (deal.hasSellPrice()) {
+                buying = deal.getAmount() * countItems(chest, deal.getSellPrice()) / deal.getSellAmount();
+            }
+            assertEquals("available of " + deal.getItem() + " " + when, available, deal.getAvailable());
+            assertEquals("buying of " + deal.getItem() + " " + when, buying, deal.getBuying());
+        }
+    }
+
+    // how shops counted before they kept counts
+    private static int countItems(Inventory inv, ItemStack it) {
+        int count = 0;
+        for (ItemStack i : inv.getContents()) {
+            if (i != null && i.isSimilar(it)) count += i.getAmount();
+        }
+        return count;
+    }
+
+    private void addDeal(ItemStack item, ItemStack buyPrice, ItemStack sellPrice) {
+        Deal deal = new Deal(item, buyPrice, sellPrice);
+        deal.setShop(shop);
+        shop.deals.add(deal);
+    }
+
+    // changes some of the slots in a range, leaving about the given share of them holding something
+    private void fill(Inventory inv, int from, int to, double changes) {
+        ItemStack[] slots = FakeInventory.of(inv).slots;
+        for (int s = from; s < to; s++) {
+            if (random.nextDouble() >= changes) continue;
+            if (random.nextInt(3) == 0) {
+                slots[s] = null;
+            } else {
+                Material type = MATERIALS[random.nextInt(MATERIALS.length)];
+                slots[s] = new ItemStack(type, 1 + random.nextInt(type.getMaxStackSize()));
+            }
+        }
+    }
+
+    private static ItemStack[] copy(Inventory inv) {
+        ItemStack[] slots = inv.getContents();
+        for (int s = 0; s < slots.length; s++) {
+            if (slots[s] != null) slots[s] = slots[s].clone();
+        }
+        return slots;
+    }
+
+    private static Player player(final PlayerInventory inv) {
+        final UUID id = new UUID(0, 2);
+        final World world = TestServer.proxy(World.class, (method, args) -> TestServer.none(method)); // drops are lost
+        return TestServer.proxy(Player.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getInventory":
+                    return inv;
+                case "getUniqueId":
+                    return id;
+                case "getWorld":
+                    return world;
+                case "isOnline":
+                    return true;
+                default:
+                    return TestServer.none(method);
+            }
+        });
+    }
+}
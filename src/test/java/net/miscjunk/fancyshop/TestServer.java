@@ -0,0 +1,289 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.UnsafeValues;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.meta.Damageable;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.material.MaterialData;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+// Just enough of a server for the storage, trade and rendering code: chests, item meta with a name, lore, damage and
+// enchantments that survives serialization, offline mode player lookups and the bundled strings. Everything else
+// answers null, zero or false.
+class TestServer {
+    private static final Logger LOGGER = Logger.getLogger("FancyShop");
+    // the 1.13.1 data version
+    private static final int DATA_VERSION = 1628;
+    private static File worldContainer = new File(".");
+    private static boolean started;
+
+    static synchronized void start() {
+        if (started) return;
+        if (Bukkit.getServer() == null) Bukkit.setServer(proxy(Server.class, TestServer::server));
+        // serialized meta is tagged with its class, which for a proxy has no deserialize method
+        ConfigurationSerialization.registerClass(SerializedMeta.class, Meta.create(Collections.emptyMap()).getClass()
+                .getName());
+        I18n.init(plugin(new File(".")));
+        started = true;
+    }
+
+    static void setWorldContainer(File dir) {
+        worldContainer = dir;
+    }
+
+    static Plugin plugin(final File dataFolder) {
+        final YamlConfiguration config = new YamlConfiguration();
+        config.set("locale", "en_US");
+        return proxy(Plugin.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getDataFolder":
+                    return dataFolder;
+                case "getLogger":
+                    return LOGGER;
+                case "getServer":
+                    return Bukkit.getServer();
+                case "getConfig":
+                    return config;
+                case "getResource":
+                    return TestServer.class.getClassLoader().getResourceAsStream((String) args[0]);
+                case "getName":
+                    return "FancyShop";
+                case "isEnabled":
+                    return true;
+                default:
+                    return none(method);
+            }
+        });
+    }
+
+    static UUID offlineId(String name) {
+        return UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Object server(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getLogger":
+                return LOGGER;
+            case "getName":
+            case "getVersion":
+            case "getBukkitVersion":
+                return "test";
+            case "getWorldContainer":
+                return worldContainer;
+            case "getOfflinePlayer":
+                if (!(args[0] instanceof String)) return none(method);
+                final String name = (String) args[0];
+                return proxy(OfflinePlayer.class, (m, a) -> {
+                    if (m.getName().equals("getUniqueId")) return offlineId(name);
+                    if (m.getName().equals("getName")) return name;
+                    return none(m);
+                });
+            case "createInventory":
+                return FakeInventory.chest((Integer) args[1]);
+            case "getPluginManager":
+                return proxy(PluginManager.class, (m, a) -> none(m));
+            case "getItemFactory":
+                return proxy(ItemFactory.class, (m, a) -> {
+                    switch (m.getName()) {
+                        case "getItemMeta":
+                            return Meta.create(new LinkedHashMap<String, Object>());
+                        case "equals":
+                            return Meta.values(a[0]).equals(Meta.values(a[1]));
+                        case "isApplicable":
+                            return true;
+                        case "asMetaFor":
+                            return a[0];
+                        case "updateMaterial":
+                            return a[1];
+                        default:
+                            return none(m);
+                    }
+                });
+            case "getUnsafe":
+                return proxy(UnsafeValues.class, (m, a) -> {
+                    switch (m.getName()) {
+                        case "getDataVersion":
+                            return DATA_VERSION;
+                        case "getMaterial":
+                            return Material.getMaterial((String) a[0]);
+                        case "toLegacy":
+                            return a[0];
+                        case "fromLegacy":
+                            if (m.getReturnType() != Material.class) return none(m);
+                            return modern(a[0] instanceof MaterialData ? ((MaterialData) a[0]).getItemType()
+                                    : (Material) a[0]);
+                        default:
+                            return none(m);
+                    }
+                });
+            default:
+                return none(method);
+        }
+    }
+
+    // meta as a map of its values, equal when the values are; proxies are Serializable, so object streams write the
+    // handler instead of wrapping the meta like a ConfigurationSerializable
+    private static class Meta implements InvocationHandler, Serializable {
+        private final Map<String, Object> values;
+
+        private Meta(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        static ItemMeta create(Map<String, Object> values) {
+            return (ItemMeta) Proxy.newProxyInstance(TestServer.class.getClassLoader(),
+                    new Class<?>[] {ItemMeta.class, Damageable.class}, new Meta(new LinkedHashMap<>(values)));
+        }
+
+        static Map<String, Object> values(Object meta) {
+            if (meta == null) return Collections.emptyMap();
+            return ((Meta) Proxy.getInvocationHandler(meta)).values;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return args[0] instanceof ItemMeta && values.equals(values(args[0]));
+                case "hashCode":
+                    return values.hashCode();
+                case "toString":
+                    return "Meta" + values;
+                case "clone":
+                    return create(values);
+                case "serialize":
+                    return new LinkedHashMap<>(values);
+                case "hasDisplayName":
+                    return values.containsKey("display-name");
+                case "getDisplayName":
+                    return values.get("display-name");
+                case "setDisplayName":
+                    set("display-name", args[0]);
+                    return null;
+                case "hasLore":
+                    return values.containsKey("lore");
+                case "getLore":
+                    return values.containsKey("lore") ? new ArrayList<>((List<?>) values.get("lore")) : null;
+                case "setLore":
+                    set("lore", args[0] == null ? null : new ArrayList<>((List<?>) args[0]));
+                    return null;
+                case "hasDamage":
+                    return values.containsKey("Damage");
+                case "getDamage":
+                    return values.containsKey("Damage") ? values.get("Damage") : 0;
+                case "setDamage":
+                    set("Damage", (Integer) args[0] == 0 ? null : args[0]);
+                    return null;
+                case "hasEnchants":
+                    return values.containsKey("enchants");
+                case "hasEnchant":
+                    return enchants().containsKey(((Enchantment) args[0]).getKey().getKey());
+                case "getEnchantLevel":
+                    Integer level = enchants().get(((Enchantment) args[0]).getKey().getKey());
+                    return level == null ? 0 : level;
+                case "addEnchant":
+                case "removeEnchant":
+                    // a new map, the old one may be shared with a clone
+                    Map<String, Integer> enchants = new LinkedHashMap<>(enchants());
+                    String key = ((Enchantment) args[0]).getKey().getKey();
+                    boolean changed = method.getName().equals("addEnchant")
+                            ? !args[1].equals(enchants.put(key, (Integer) args[1])) : enchants.remove(key) != null;
+                    set("enchants", enchants.isEmpty() ? null : enchants);
+                    return changed;
+                default:
+                    return none(method);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, Integer> enchants() {
+            return values.containsKey("enchants") ? (Map<String, Integer>) values.get("enchants")
+                    : Collections.<String, Integer>emptyMap();
+        }
+
+        private void set(String key, Object value) {
+            if (value == null) {
+                values.remove(key);
+            } else {
+                values.put(key, value);
+            }
+        }
+    }
+
+    // reads back what Meta.serialize wrote
+    public static class SerializedMeta implements ConfigurationSerializable {
+        public static ItemMeta deserialize(Map<String, Object> values) {
+            Map<String, Object> copy = new LinkedHashMap<>(values);
+            copy.remove(ConfigurationSerialization.SERIALIZED_TYPE_KEY);
+            return Meta.create(copy);
+        }
+
+        public Map<String, Object> serialize() {
+            return Collections.emptyMap();
+        }
+    }
+
+    private static Material modern(Material type) {
+        if (type == null || !type.isLegacy()) return type;
+        return Material.getMaterial(type.name().substring(Material.LEGACY_PREFIX.length()));
+    }
+
+    interface Handler {
+        Object invoke(Method method, Object[] args);
+    }
+
+    static <T> T proxy(Class<T> type, final Handler handler) {
+        return type.cast(Proxy.newProxyInstance(TestServer.class.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (args == null) args = new Object[0];
+                        if (method.getDeclaringClass() == Object.class) {
+                            switch (method.getName()) {
+                                case "equals":
+                                    return proxy == args[0];
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                default:
+                                    return type.getSimpleName();
+                            }
+                        }
+                        return handler.invoke(method, args);
+                    }
+                }));
+    }
+
+    static Object none(Method method) {
+        Class<?> type = method.getReturnType();
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0f;
+        if (type == char.class) return '\0';
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        return 0;
+    }
+}
@@ -0,0 +1,105 @@
+package net.miscjunk.fancyshop;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Trades read back from the ledger have to come out in time order, filtered by shop and range, across restarts of
+// the writer.
+public class TradeLedgerTest {
+    private static final ShopLocation SHOP = new ShopLocation("world", 10, 64, 10);
+    private static final ShopLocation OTHER = new ShopLocation("world", 20, 64, 20);
+    private static final UUID PLAYER = new UUID(0, 1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Plugin plugin;
+
+    @Before
+    public void setUp() {
+        TestServer.start();
+        plugin = TestServer.plugin(folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        TradeLedger.cleanup();
+    }
+
+    @Test
+    public void scanFiltersByShopAndTime() throws IOException {
+        TradeLedger.init(plugin);
+        ItemStack diamond = new ItemStack(Material.DIAMOND, 1);
+        ItemStack emerald = new ItemStack(Material.EMERALD, 2);
+        long start = System.currentTimeMillis();
+        TradeLedger.record(TradeLedger.BUY, SHOP, PLAYER, diamond, emerald);
+        TradeLedger.record(TradeLedger.SELL, OTHER, PLAYER, diamond, emerald);
+        TradeLedger.record(TradeLedger.SELL, SHOP, PLAYER, diamond, 5, emerald, 10);
+        TradeLedger.cleanup();
+
+        TradeLedger.init(plugin);
+        List<TradeLedger.Trade> trades = scan(start, Long.MAX_VALUE, SHOP);
+        assertEquals(2, trades.size());
+        assertEquals(TradeLedger.BUY, trades.get(0).getType());
+        assertEquals(TradeLedger.SELL, trades.get(1).getType());
+        assertEquals(5, trades.get(1).getQuantity());
+        assertEquals(10, trades.get(1).getPrice());
+        assertEquals(TradeLedger.fingerprint(diamond), trades.get(1).getItem());
+        assertEquals(TradeLedger.currencyFingerprint(emerald), trades.get(1).getCurrency());
+        assertEquals(SHOP, trades.get(1).getShop());
+        assertEquals(3, scan(start, Long.MAX_VALUE, null).size());
+        assertEquals(0, scan(System.currentTimeMillis() + 1, Long.MAX_VALUE, null).size());
+    }
+
+    @Test
+    public void timesStayOrderedWhenANewSegmentIsStarted() throws IOException {
+        TradeLedger.init(plugin);
+        ItemStack diamond = new ItemStack(Material.DIAMOND, 1);
+        TradeLedger.record(TradeLedger.BUY, SHOP, PLAYER, diamond, diamond);
+        TradeLedger.cleanup();
+
+        // the last run's clock was ahead, and the segment size changed since, so the old segment isn't resumed
+        long ahead = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        File[] segments = new File(folder.getRoot(), "ledger").listFiles((dir, name) -> name.endsWith(".seg"));
+        assertNotNull(segments);
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.writeLong(ahead);
+        }
+        plugin.getConfig().set("ledger-segment-size", 1);
+        TradeLedger.init(plugin);
+        TradeLedger.record(TradeLedger.SELL, SHOP, PLAYER, diamond, diamond);
+        TradeLedger.cleanup();
+
+        TradeLedger.init(plugin);
+        List<TradeLedger.Trade> trades = scan(0, Long.MAX_VALUE, SHOP);
+        assertEquals(2, trades.size());
+        assertEquals(ahead, trades.get(0).getTime());
+        assertTrue(trades.get(1).getTime() >= ahead);
+        assertEquals(TradeLedger.SELL, trades.get(1).getType());
+    }
+
+    private static List<TradeLedger.Trade> scan(long from, long to, ShopLocation shop) throws IOException {
+        List<TradeLedger.Trade> trades = new ArrayList<>();
+        TradeLedger.getInstance().scan(from, to, shop, trades::add);
+        return trades;
+    }
+}